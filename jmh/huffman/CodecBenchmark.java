@@ -0,0 +1,157 @@
+package huffman;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of encoding and decoding the generated corpora of
+ * MainBenchmark.  The scores are operations per second; multiply by the
+ * size to get bytes per second, and run with -prof gc for the bytes
+ * allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"text", "logs", "binary", "skewed", "uniform"})
+    public String corpus;
+
+    @Param({"1K", "64K", "1M"})
+    public String size;
+
+    private byte data[];
+    private HuffmanCodec codec;
+    private ByteBuffer compressed;
+    private HuffmanCodec interleavedCodec;
+    private ByteBuffer interleavedCompressed;
+    private ContextCodec contextCodec;
+    private ByteBuffer contextCompressed;
+    private HuffmanDict dict;
+    private byte coded[];
+    private ByteBuffer encodeDst;
+    private ByteBuffer decodeDst;
+
+    @Setup
+    public void setup() throws IOException {
+        data = MainBenchmark.generate(corpus, MainBenchmark.parseSize(size), new Random(42));
+
+        codec = new HuffmanCodec();
+        compressed = compress(codec, codec.maxCompressedLength(data.length));
+        interleavedCodec = new HuffmanCodec(BlockEncoder.DEFAULT_BLOCK_SIZE, true);
+        interleavedCompressed = compress(interleavedCodec,
+                interleavedCodec.maxCompressedLength(data.length));
+        contextCodec = new ContextCodec();
+        contextCompressed = ByteBuffer.allocate(contextCodec.maxCompressedLength(data.length));
+        contextCodec.compress(data, 0, data.length, contextCompressed);
+        contextCompressed.flip();
+
+        dict = new HuffmanDict();
+        dict.add(data, 0, data.length);
+        dict.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MainEncode.writeData(new DataInputStream(new ByteArrayInputStream(data)),
+                dict, new DataOutputStream(encoded));
+        coded = encoded.toByteArray();
+
+        encodeDst = ByteBuffer.allocate(Math.max(codec.maxCompressedLength(data.length),
+                contextCodec.maxCompressedLength(data.length)));
+        decodeDst = ByteBuffer.allocate(data.length);
+    }
+
+    private ByteBuffer compress(HuffmanCodec codec, int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        codec.compress(data, 0, data.length, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public int encode() {
+        encodeDst.clear();
+        return codec.compress(data, 0, data.length, encodeDst);
+    }
+
+    @Benchmark
+    public int decode() {
+        decodeDst.clear();
+        compressed.rewind();
+        return codec.decompress(compressed, decodeDst);
+    }
+
+    @Benchmark
+    public int interleavedDecode() {
+        decodeDst.clear();
+        interleavedCompressed.rewind();
+        return interleavedCodec.decompress(interleavedCompressed, decodeDst);
+    }
+
+    @Benchmark
+    public int contextEncode() {
+        encodeDst.clear();
+        return contextCodec.compress(data, 0, data.length, encodeDst);
+    }
+
+    @Benchmark
+    public int contextDecode() {
+        decodeDst.clear();
+        contextCompressed.rewind();
+        return contextCodec.decompress(contextCompressed, decodeDst);
+    }
+
+    @Benchmark
+    public void writeData(Blackhole blackhole) throws IOException {
+        MainEncode.writeData(new DataInputStream(new ByteArrayInputStream(data)),
+                dict, new DataOutputStream(new BlackholeOutputStream(blackhole)));
+    }
+
+    @Benchmark
+    public void tableDecode(Blackhole blackhole) throws IOException {
+        dict.getTableDecoder().decode(new ByteArrayInputStream(coded),
+                new BlackholeOutputStream(blackhole));
+    }
+
+    /**
+     * Output stream which consumes the bytes written to it, so the JIT
+     * cannot remove the code which produces them.
+     */
+    static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package huffman;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of counting the bytes of the generated corpora of
+ * MainBenchmark, building codes from the counts and the priority queue.
+ * Building codes only depends on the counts, so its score hardly changes
+ * with the size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class TreeBenchmark {
+    @Param({"text", "logs", "binary", "skewed", "uniform"})
+    public String corpus;
+
+    @Param({"64K"})
+    public String size;
+
+    private byte data[];
+    private final int counts[] = new int[256];
+    private final int freqs[] = new int[256];
+    private final int scratch[] = new int[Histogram.SCRATCH_SIZE];
+    private final int lengths[] = new int[256];
+    private final CodeLengthBuilder builder = new CodeLengthBuilder();
+    private final Integer values[] = new Integer[256];
+
+    @Setup
+    public void setup() {
+        data = MainBenchmark.generate(corpus, MainBenchmark.parseSize(size), new Random(42));
+        Histogram.count(data, 0, data.length, counts);
+        for (int b = 0; b < 256; b++)
+            freqs[b ^ 0x80] = counts[b];
+        for (int i = 0; i < 256; i++)
+            values[i] = i;
+    }
+
+    @Benchmark
+    public int[] histogram() {
+        int result[] = new int[256];
+        Histogram.count(data, 0, data.length, result, scratch);
+        return result;
+    }
+
+    @Benchmark
+    public HuffmanDict makeTree() {
+        HuffmanDict dict = new HuffmanDict();
+        dict.addCounts(counts);
+        dict.makeTree(BitWriter.MAX_CODE_LENGTH);
+        return dict;
+    }
+
+    @Benchmark
+    public int[] codeLengths() {
+        Arrays.fill(lengths, 0);
+        builder.build(freqs, BitWriter.MAX_CODE_LENGTH, lengths);
+        return lengths;
+    }
+
+    // One insert and one remove for each input byte, as an Integer, with
+    // at most 256 elements in the queue
+    @Benchmark
+    public long priorityQueue() {
+        PriorityQueue<Integer> pqueue = new PriorityQueue<>();
+        long sum = 0;
+        for (int i = 0; i < data.length; i++) {
+            pqueue.insert(values[data[i] & 0xFF]);
+            if (pqueue.size() == 256)
+                sum += pqueue.remove();
+        }
+        while (pqueue.size() > 0)
+            sum += pqueue.remove();
+        return sum;
+    }
+}
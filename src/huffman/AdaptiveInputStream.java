@@ -0,0 +1,126 @@
+package huffman;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which decodes a stream written by AdaptiveOutputStream.
+ * Each segment is decoded as soon as it is read, with the codes rebuilt
+ * from the segments decoded before it.
+ *
+ * The underlying stream is not read past the end of the adaptive stream.
+ */
+public class AdaptiveInputStream extends FilterInputStream {
+    private final AdaptiveModel model = new AdaptiveModel(true);
+    private final DataInputStream data;
+    private final int interval;
+    private byte segment[] = new byte[0];
+    private int pos;            // position of the next byte in segment
+    private int count;          // number of decoded bytes in segment
+    private byte coded[] = new byte[0];
+    private boolean ended;
+
+    /**
+     * Creates an input stream which decodes the adaptive stream read from
+     * the given input stream.  The stream header is read immediately.
+     *
+     * @param in the underlying input stream
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the input is not an adaptive stream
+     */
+    public AdaptiveInputStream(InputStream in) throws IOException {
+        super(in);
+        this.data = new DataInputStream(in);
+        byte b = data.readByte();
+        if (b != AdaptiveModel.ADAPTIVE_STREAM)
+            throw new IllegalArgumentException("Not an adaptive stream: " + (char)b);
+        long interval = Varint.read(data);
+        if (interval <= 0 || interval > AdaptiveModel.MAX_INTERVAL)
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        this.interval = (int)interval;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == count && !readSegment())
+            return -1;
+        return segment[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (pos == count && !readSegment())
+            return -1;
+        int n = Math.min(len, count - pos);
+        System.arraycopy(segment, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (pos == count && !readSegment())
+                break;
+            int k = (int)Math.min(n - skipped, count - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of decoded bytes which can be read without
+     * reading the underlying stream.
+     */
+    @Override
+    public int available() {
+        return count - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    // Reads and decodes the next segment, returns false at the end of
+    // the stream
+    private boolean readSegment() throws IOException {
+        if (ended)
+            return false;
+        int length = BlockDecoder.readLength(data);
+        if (length == 0) {
+            ended = true;
+            return false;
+        }
+        if (length > interval)
+            throw new IllegalArgumentException("Segment too long: " + length);
+        int codedLength = BlockDecoder.readLength(data);
+        if (codedLength > AdaptiveModel.maxCodedLength(length))
+            throw new IllegalArgumentException("Invalid segment length: " + codedLength);
+        coded = BlockDecoder.readFully(data, coded, codedLength);
+        if (segment.length < length)
+            segment = new byte[length];
+
+        model.decoder.decode(coded, 0, codedLength, segment, 0, length);
+        model.update(segment, 0, length);
+        pos = 0;
+        count = length;
+        return true;
+    }
+}
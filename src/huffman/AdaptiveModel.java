@@ -0,0 +1,77 @@
+package huffman;
+import java.util.Arrays;
+
+/**
+ * The byte frequencies and codes shared by AdaptiveOutputStream and
+ * AdaptiveInputStream.  Both sides start with a count of 1 for every
+ * byte, add the bytes of each segment after it is encoded or decoded, and
+ * rebuild the codes from the counts, so the decoder always has the codes
+ * the encoder used without any dictionary in the stream.
+ *
+ * When the total count exceeds MAX_TOTAL all the counts are halved, so
+ * the codes follow changes in the data instead of its whole history.
+ */
+class AdaptiveModel {
+    // First byte of an adaptive stream
+    static final byte ADAPTIVE_STREAM = 'A';
+
+    // Default number of bytes after which the codes are rebuilt
+    static final int DEFAULT_INTERVAL = 4096;
+
+    // Largest total count before the counts are halved
+    static final int MAX_TOTAL = 1 << 16;
+
+    // Largest interval, whose encoded segment still fits in an array
+    static final int MAX_INTERVAL = (Integer.MAX_VALUE - 8) / (BitWriter.MAX_CODE_LENGTH / 8) - 2;
+
+    final int lengths[] = new int[256];     // indexed by byte + 128
+    final int codeBits[] = new int[256];    // indexed by byte + 128
+    final TableDecoder decoder;             // null when encoding
+
+    private final int freqs[] = new int[256];
+    private final CodeLengthBuilder builder = new CodeLengthBuilder();
+    private int total;
+
+    /**
+     * @param decoding true to maintain decoding tables for the codes
+     */
+    AdaptiveModel(boolean decoding) {
+        this.decoder = decoding ? new TableDecoder() : null;
+        Arrays.fill(freqs, 1);
+        total = 256;
+        rebuild();
+    }
+
+    /**
+     * Returns the largest number of bytes of an encoded segment of length
+     * bytes, with room for a 64 bit word.  It fits in an array for any
+     * length up to MAX_INTERVAL.
+     */
+    static int maxCodedLength(int length) {
+        return (int)((long)length * BitWriter.MAX_CODE_LENGTH / 8 + 8);
+    }
+
+    /**
+     * Adds the given bytes to the counts and rebuilds the codes.
+     */
+    void update(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            freqs[data[i] + 128]++;
+        total += length;
+        if (total > MAX_TOTAL) {
+            total = 0;
+            for (int i = 0; i < 256; i++) {
+                freqs[i] = (freqs[i] + 1) / 2;
+                total += freqs[i];
+            }
+        }
+        rebuild();
+    }
+
+    private void rebuild() {
+        builder.build(freqs, BitWriter.MAX_CODE_LENGTH, lengths);
+        builder.codes(lengths, codeBits);
+        if (decoder != null)
+            decoder.build(lengths);
+    }
+}
@@ -0,0 +1,153 @@
+package huffman;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream which encodes bytes with adaptive Huffman codes, without
+ * reading the input first to count the bytes.  Each byte is encoded when
+ * it is written, with codes rebuilt from the bytes written before, and
+ * the encoded segment is written to the underlying stream after every
+ * interval bytes or when flush() is called, which bounds the latency.
+ *
+ * The stream starts with the byte ADAPTIVE_STREAM and the interval, as a
+ * Varint, followed by the segments.  Each segment is stored as:
+ *  - the number of bytes in the segment, as a Varint
+ *  - the number of bytes of encoded data, as a Varint
+ *  - the encoded data, padded to a whole byte
+ * The stream ends with a segment length of 0.  After each segment both
+ * the encoder and the decoder update their AdaptiveModel with its bytes.
+ */
+public class AdaptiveOutputStream extends FilterOutputStream {
+    private final AdaptiveModel model = new AdaptiveModel(false);
+    private final byte segment[];   // bytes of the current segment
+    private int count;              // number of bytes in segment
+    private final byte coded[];     // encoded bytes of the current segment
+    private int codedLength;
+    private long bitBuf;            // bits not yet moved to coded
+    private int bitCount;
+    private boolean finished;
+
+    /**
+     * Creates an output stream which rebuilds the codes every
+     * AdaptiveModel.DEFAULT_INTERVAL bytes.  The stream header is written
+     * immediately.
+     *
+     * @param out the underlying output stream
+     * @throws IOException if an error occurs during writing
+     */
+    public AdaptiveOutputStream(OutputStream out) throws IOException {
+        this(out, AdaptiveModel.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates an output stream which rebuilds the codes after the given
+     * number of bytes.  A shorter interval adapts faster and writes the
+     * encoded bytes sooner, a longer one spends less time rebuilding.
+     *
+     * @param out the underlying output stream
+     * @param interval the largest number of bytes in a segment
+     * @throws IOException if an error occurs during writing
+     */
+    public AdaptiveOutputStream(OutputStream out, int interval) throws IOException {
+        super(out);
+        if (interval <= 0 || interval > AdaptiveModel.MAX_INTERVAL)
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        this.segment = new byte[interval];
+        this.coded = new byte[AdaptiveModel.maxCodedLength(interval)];
+        out.write(AdaptiveModel.ADAPTIVE_STREAM);
+        Varint.write(out, interval);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        encode((byte)b);
+        if (count == segment.length)
+            writeSegment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        for (int i = off; i < off + len; i++) {
+            encode(b[i]);
+            if (count == segment.length)
+                writeSegment();
+        }
+    }
+
+    /**
+     * Writes the bytes encoded since the last segment as a segment and
+     * flushes the underlying output stream.  After finish() it only 
+     * flushes the underlying output stream.
+     *
+     * @throws IOException if an error occurs during writing
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished)
+            writeSegment();
+        out.flush();
+    }
+
+    /**
+     * Writes the last segment and the end of the stream, without closing
+     * the underlying output stream.  No more bytes can be written.
+     *
+     * @throws IOException if an error occurs during writing
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        writeSegment();
+        Varint.write(out, 0); // end of stream
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // Appends the code of a byte to the encoded segment
+    private void encode(byte c) {
+        int index = c + 128;
+        segment[count++] = c;
+        bitBuf |= (model.codeBits[index] & 0xFFFFFFFFL) << bitCount;
+        bitCount += model.lengths[index];
+        while (bitCount >= 8) {
+            coded[codedLength++] = (byte)bitBuf;
+            bitBuf >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private void writeSegment() throws IOException {
+        if (count == 0)
+            return;
+        if (bitCount > 0)
+            coded[codedLength++] = (byte)bitBuf;
+        Varint.write(out, count);
+        Varint.write(out, codedLength);
+        out.write(coded, 0, codedLength);
+
+        model.update(segment, 0, count);
+        count = 0;
+        codedLength = 0;
+        bitBuf = 0;
+        bitCount = 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (finished)
+            throw new IOException("Stream finished");
+    }
+}
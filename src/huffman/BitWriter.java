@@ -0,0 +1,77 @@
+package huffman;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes codes of up to 32 bits into an output stream.
+ *
+ * Bits are collected in a 64-bit register and moved to a buffer 32 bits
+ * at a time.  The first bit written goes into the lowest bit of a byte,
+ * which is the order expected by TableDecoder.
+ */
+public class BitWriter {
+    // Longest code that can be written
+    static final int MAX_CODE_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream output;
+    private final ByteBuffer buffer;
+    private long bitBuf;    // bits not yet moved to buffer, the first one is bit 0
+    private int bitCount;   // number of bits in bitBuf, always less than 32
+
+    /**
+     * Creates a BitWriter which writes into the given output stream.
+     * @param output the output stream
+     */
+    public BitWriter(OutputStream output) {
+        this.output = output;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Appends a code to the bits written so far.
+     *
+     * @param bits the code bits, the first bit of the code is bit 0
+     * @param length the number of bits in the code, at most MAX_CODE_LENGTH
+     * @throws IOException if an error occurs during writing
+     */
+    public void write(int bits, int length) throws IOException {
+        bitBuf |= (bits & 0xFFFFFFFFL) << bitCount;
+        bitCount += length;
+        if (bitCount >= 32) {
+            if (buffer.remaining() < 4)
+                flushBuffer();
+            buffer.putInt((int)bitBuf);
+            bitBuf >>>= 32;
+            bitCount -= 32;
+        }
+    }
+
+    /**
+     * Writes all the bits appended so far to the output stream.  If the
+     * number of bits is not a multiple of 8 the last byte is padded with
+     * 0 bits, and the next code starts with a new byte.
+     *
+     * @throws IOException if an error occurs during writing
+     */
+    public void flush() throws IOException {
+        while (bitCount > 0) {
+            if (!buffer.hasRemaining())
+                flushBuffer();
+            buffer.put((byte)bitBuf);
+            bitBuf >>>= 8;
+            bitCount -= 8;
+        }
+        bitBuf = 0;
+        bitCount = 0;
+        flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+}
@@ -0,0 +1,344 @@
+package huffman;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decodes a stream written by BlockEncoder.  Decoding stops exactly after
+ * the number of bytes stored in each block.
+ * 
+ * Blocks are read from the input in the calling thread, decoded by the
+ * tasks of a ForkJoinPool and written to the output in order.
+ */
+public class BlockDecoder {
+    // Bytes of encoded data read at first into a growing array
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a BlockDecoder which decodes blocks in the common ForkJoinPool.
+     */
+    public BlockDecoder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a BlockDecoder.
+     * @param pool the pool where blocks are decoded, or null to decode
+     * the blocks in the calling thread
+     */
+    public BlockDecoder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads an encoded block stream from the input and writes the decoded
+     * bytes to the output stream.
+     *
+     * @param input input stream containing a block stream
+     * @param output output stream where decoded bytes are written
+     * @return the number of bytes decoded
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the input is not a valid 
+     * block stream
+     */
+    public long decode(InputStream input, OutputStream output) throws IOException {
+        DataInputStream data = (input instanceof DataInputStream) ?
+                (DataInputStream)input : new DataInputStream(input);
+        return decode(data, output, new StreamHeader(data));
+    }
+
+    private long decode(DataInputStream data, OutputStream output, 
+            StreamHeader header) throws IOException {
+        OrderedOutput blocks = new OrderedOutput(pool, output);
+        long total = 0;
+        while (true) {
+            int rawLength = readLength(data);
+            if (rawLength == 0)
+                break; // end of stream
+            total = header.checkBlock(total, rawLength);
+            HuffmanDict dict = header.blockDictionary(data);
+            int codedLength = readLength(data);
+            byte[] coded = readFully(data, new byte[0], codedLength);
+            blocks.submit(() -> decodeBlock(header, dict, ByteBuffer.wrap(coded), rawLength));
+        }
+        blocks.finish();
+        header.checkTotal(total);
+        return total;
+    }
+
+    /**
+     * Decodes a block stream stored in a file which is mapped into memory
+     * in regions of about Histogram.MAP_SIZE bytes, so blocks are decoded
+     * directly from the mapped file without copying them.
+     *
+     * @param input the file containing a block stream, read from its beginning
+     * @param output output stream where decoded bytes are written
+     * @return the number of bytes decoded
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the input is not a valid 
+     * block stream
+     */
+    public long decode(FileChannel input, OutputStream output) throws IOException {
+        MappedInput mapped = new MappedInput(input);
+        DataInputStream data = mapped.headerAt(0);
+        StreamHeader header = new StreamHeader(data);
+        long pos = mapped.position();
+
+        OrderedOutput blocks = new OrderedOutput(pool, output);
+        long total = 0;
+        while (true) {
+            data = mapped.headerAt(pos);
+            int rawLength = readLength(data);
+            if (rawLength == 0)
+                break; // end of stream
+            total = header.checkBlock(total, rawLength);
+            HuffmanDict dict = header.blockDictionary(data);
+            int codedLength = readLength(data);
+            pos = mapped.position();
+
+            ByteBuffer coded = mapped.slice(pos, codedLength);
+            blocks.submit(() -> decodeBlock(header, dict, coded, rawLength));
+            pos += codedLength;
+        }
+        blocks.finish();
+        header.checkTotal(total);
+        return total;
+    }
+
+    /**
+     * Decodes a block stream stored between the position and the limit of
+     * the input buffer and returns the decoded bytes.  If the stream header
+     * has the original length, the headers of all the blocks are read 
+     * first, and once their lengths add up to the original length the 
+     * decoded array is allocated and each block is decoded directly into 
+     * its place in the array.  The position of the input buffer is moved 
+     * after the end of the stream.
+     *
+     * @param input buffer containing a block stream
+     * @return the decoded bytes
+     * @throws IOException if the stream ends too early
+     * @throws IllegalArgumentException if the input is not a valid 
+     * block stream, or it is too large to decode into an array
+     */
+    public byte[] decode(ByteBuffer input) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteBufferInputStream(input));
+        StreamHeader header = new StreamHeader(data);
+        if (header.originalLength < 0) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            decode(data, output, header);
+            return output.toByteArray();
+        }
+        if (header.originalLength > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Stream too large: " + header.originalLength);
+
+        // Nothing is allocated for the decoded bytes before the blocks
+        // are known to match the original length
+        ArrayList<Block> blocks = new ArrayList<>();
+        int total = 0;
+        while (true) {
+            int rawLength = readLength(data);
+            if (rawLength == 0)
+                break; // end of stream
+            int offset = total;
+            total = (int)header.checkBlock(total, rawLength);
+            HuffmanDict dict = header.blockDictionary(data);
+            int codedLength = readLength(data);
+            if (codedLength > input.remaining())
+                throw new EOFException();
+
+            ByteBuffer coded = input.slice();
+            coded.limit(codedLength);
+            input.position(input.position() + codedLength);
+            blocks.add(new Block(dict, coded, offset, rawLength));
+        }
+        header.checkTotal(total);
+
+        byte[] decoded = new byte[total];
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Block block : blocks) {
+            ForkJoinTask<?> task = ForkJoinTask.adapt(() -> header.decodeBlock(
+                    block.dict, block.coded, decoded, block.offset, block.rawLength));
+            if (pool != null)
+                pool.execute(task);
+            else
+                task.invoke();
+            tasks.add(task);
+        }
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+        return decoded;
+    }
+
+    private static byte[] decodeBlock(StreamHeader header, HuffmanDict dict, 
+            ByteBuffer coded, int rawLength) {
+        byte[] block = new byte[rawLength];
+        header.decodeBlock(dict, coded, block, 0, rawLength);
+        return block;
+    }
+
+    // Reads a block length, which must fit in an array
+    static int readLength(DataInputStream input) throws IOException {
+        long length = Varint.read(input);
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Block too large: " + length);
+        return (int)length;
+    }
+
+    // Reads length bytes into buffer, or into a larger array which is
+    // returned in its place.  The array grows as the bytes arrive, so a 
+    // corrupt length read from the input fails at the end of the input 
+    // instead of allocating the whole length up front.
+    static byte[] readFully(DataInputStream input, byte[] buffer, int length) 
+            throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            if (pos == buffer.length)
+                buffer = Arrays.copyOf(buffer, 
+                        Math.min(length, Math.max(READ_SIZE, 2 * buffer.length)));
+            int n = input.read(buffer, pos, Math.min(length, buffer.length) - pos);
+            if (n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+        return buffer;
+    }
+
+    /**
+     * A block read by decode(ByteBuffer) and not decoded yet.
+     */
+    private static class Block {
+        final HuffmanDict dict;
+        final ByteBuffer coded;
+        final int offset;       // position of the decoded bytes
+        final int rawLength;
+
+        Block(HuffmanDict dict, ByteBuffer coded, int offset, int rawLength) {
+            this.dict = dict;
+            this.coded = coded;
+            this.offset = offset;
+            this.rawLength = rawLength;
+        }
+    }
+
+    /**
+     * The stream header written by BlockEncoder.
+     */
+    static class StreamHeader {
+        final long originalLength;  // -1 if not known
+        final HuffmanDict shared;   // null if each block has a dictionary
+        final boolean interleaved;  // each block is encoded in four parts
+        final boolean indexed;      // the stream is followed by a BlockIndex
+
+        StreamHeader(DataInputStream input) throws IOException {
+            byte b = input.readByte();
+            if (b != BlockEncoder.BLOCK_STREAM)
+                throw new IllegalArgumentException("Not a block stream: " + (char)b);
+            int flags = input.readUnsignedByte();
+            originalLength = ((flags & BlockEncoder.ORIGINAL_LENGTH) != 0) ? Varint.read(input) : -1;
+            shared = ((flags & BlockEncoder.SHARED_DICTIONARY) != 0) ? HuffmanDict.read(input) : null;
+            interleaved = (flags & BlockEncoder.INTERLEAVED) != 0;
+            indexed = (flags & BlockEncoder.INDEXED) != 0;
+        }
+
+        // Decodes the encoded data of a block into count bytes of dst
+        void decodeBlock(HuffmanDict dict, ByteBuffer coded, byte[] dst, int dstPos, int count) {
+            long time = Metrics.start();
+            if (interleaved)
+                dict.getTableDecoder().decodeInterleaved(coded, dst, dstPos, count);
+            else
+                dict.getTableDecoder().decode(coded, dst, dstPos, count);
+            Metrics.phase(Metrics.Phase.DECODE, time, count);
+        }
+
+        // Returns the dictionary of the next block
+        HuffmanDict blockDictionary(DataInputStream input) throws IOException {
+            return (shared != null) ? shared : HuffmanDict.read(input);
+        }
+
+        // Returns the total length after the next block, checking that 
+        // it does not exceed the original length
+        long checkBlock(long total, int rawLength) {
+            total += rawLength;
+            if (originalLength >= 0 && total > originalLength)
+                throw new IllegalArgumentException("Blocks longer than the stream: " + originalLength);
+            return total;
+        }
+
+        // Checks the total length at the end of the stream
+        void checkTotal(long total) {
+            if (originalLength >= 0 && total != originalLength)
+                throw new IllegalArgumentException("Blocks shorter than the stream: " + originalLength);
+        }
+    }
+
+    /**
+     * Maps regions of a file into memory, moving the mapped region when
+     * the data needed is outside of it.
+     */
+    private static class MappedInput {
+        // Bytes of header which must be mapped before reading a header
+        private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a stream for reading the header starting at pos from
+         * the mapped region.
+         */
+        DataInputStream headerAt(long pos) throws IOException {
+            map(pos, (int)Math.min(MAX_HEADER_SIZE, size - pos));
+            region.position((int)(pos - regionStart));
+            return new DataInputStream(new ByteBufferInputStream(region));
+        }
+
+        /**
+         * Returns the file position after the last header byte read.
+         */
+        long position() {
+            return regionStart + region.position();
+        }
+
+        /**
+         * Returns a buffer with the length bytes starting at pos.
+         */
+        ByteBuffer slice(long pos, int length) throws IOException {
+            if (pos + length > size)
+                throw new EOFException();
+            map(pos, length);
+            ByteBuffer slice = region.duplicate();
+            slice.position((int)(pos - regionStart));
+            slice.limit(slice.position() + length);
+            return slice.slice();
+        }
+
+        // Makes sure the length bytes starting at pos are mapped
+        private void map(long pos, int length) throws IOException {
+            if (region != null && pos >= regionStart 
+                    && pos + length <= regionStart + region.capacity())
+                return;
+            long regionSize = Math.max(length, Math.min(Histogram.MAP_SIZE, size - pos));
+            region = channel.map(FileChannel.MapMode.READ_ONLY, pos, regionSize);
+            regionStart = pos;
+        }
+    }
+}
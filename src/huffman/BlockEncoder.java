@@ -0,0 +1,366 @@
+package huffman;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Encodes a stream in a single pass by splitting it into blocks.  Only a
+ * few blocks are kept in memory, so input of any size can be encoded,
+ * including input that can only be read once, like System.in.
+ * 
+ * Blocks are encoded by the tasks of a ForkJoinPool and written to the 
+ * output in order, so encoding uses all the threads of the pool.
+ * 
+ * The encoded stream starts with:
+ *  - the byte BLOCK_STREAM
+ *  - a byte of flags, ORIGINAL_LENGTH is set if the number of bytes
+ *    encoded is known before encoding, SHARED_DICTIONARY is set if 
+ *    all blocks are encoded with the same dictionary, INTERLEAVED is
+ *    set if the data of each block is encoded in four parts, and INDEXED
+ *    is set if the stream is followed by a BlockIndex
+ *  - the number of bytes encoded, as a Varint, if ORIGINAL_LENGTH is set
+ *  - the shared dictionary, as written by HuffmanDict.toBytes(), if
+ *    SHARED_DICTIONARY is set
+ * followed by the blocks.  Each block is stored as:
+ *  - the number of bytes in the block, as a Varint
+ *  - the block dictionary, if SHARED_DICTIONARY is not set
+ *  - the number of bytes of encoded data, as a Varint
+ *  - the encoded data
+ * The stream ends with a block length of 0.  An indexed stream is then
+ * followed by the position of each block, as described in BlockIndex,
+ * which lets RandomAccessDecoder decode any part of a file.
+ *
+ * In an interleaved stream the encoded data of each block is a jump table
+ * followed by four separately encoded parts of the block, as described in
+ * TableDecoder.decodeInterleaved(), which decodes them about twice as fast.
+ *
+ * A block made of a single byte value has a dictionary with only that
+ * byte and no encoded data, so it takes a few bytes whatever its length.
+ * A block which encoding would not make smaller, like compressed or
+ * random data, is stored: its dictionary is HuffmanDict.STORED_HEADER and
+ * its data is the input bytes, which the decoder copies.  Blocks of a
+ * stream with a shared dictionary are always encoded.
+ */
+public class BlockEncoder {
+    // First byte of a block stream
+    static final byte BLOCK_STREAM = 'B';
+
+    // Stream flags
+    static final int SHARED_DICTIONARY = 0x01;
+    static final int ORIGINAL_LENGTH = 0x02;
+    static final int INTERLEAVED = 0x04;
+    static final int INDEXED = 0x08;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    // Largest block, which is mapped in a single region and leaves room
+    // in an array for the block header
+    public static final int MAX_BLOCK_SIZE = (int)Histogram.MAP_SIZE;
+
+    private final int blockSize;
+    private final ForkJoinPool pool;
+    private final boolean interleaved;
+    private final boolean indexed;
+
+    /**
+     * Creates a BlockEncoder with blocks of DEFAULT_BLOCK_SIZE bytes
+     * which encodes blocks in the common ForkJoinPool.
+     */
+    public BlockEncoder() {
+        this(DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a BlockEncoder with the given block size which encodes
+     * blocks in the common ForkJoinPool.
+     * @param blockSize the number of input bytes in each block
+     */
+    public BlockEncoder(int blockSize) {
+        this(blockSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a BlockEncoder with the given block size.
+     * @param blockSize the number of input bytes in each block
+     * @param pool the pool where blocks are encoded, or null to encode
+     * the blocks in the calling thread
+     */
+    public BlockEncoder(int blockSize, ForkJoinPool pool) {
+        this(blockSize, pool, false);
+    }
+
+    /**
+     * Creates a BlockEncoder which encodes the data of each block in four
+     * parts if interleaved is true.  Interleaved blocks are a few bytes
+     * longer and are decoded faster.
+     * @param blockSize the number of input bytes in each block
+     * @param pool the pool where blocks are encoded, or null to encode
+     * the blocks in the calling thread
+     * @param interleaved true to encode each block in four parts
+     */
+    public BlockEncoder(int blockSize, ForkJoinPool pool, boolean interleaved) {
+        this(blockSize, pool, interleaved, false);
+    }
+
+    /**
+     * Creates a BlockEncoder which writes the index of the blocks after
+     * the stream if indexed is true, so files can be read with a
+     * RandomAccessDecoder.  Smaller blocks make reading short ranges
+     * faster and compress less.
+     * @param blockSize the number of input bytes in each block
+     * @param pool the pool where blocks are encoded, or null to encode
+     * the blocks in the calling thread
+     * @param interleaved true to encode each block in four parts
+     * @param indexed true to write the index of the blocks
+     * @throws IllegalArgumentException if blockSize is not between 1 and
+     * MAX_BLOCK_SIZE
+     */
+    public BlockEncoder(int blockSize, ForkJoinPool pool, boolean interleaved,
+            boolean indexed) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.blockSize = blockSize;
+        this.pool = pool;
+        this.interleaved = interleaved;
+        this.indexed = indexed;
+    }
+
+    /**
+     * Reads bytes from the input stream until the end of stream is
+     * reached and writes them encoded into the output stream.  Each block
+     * is encoded with its own dictionary.
+     *
+     * @param input input stream contains data to encode
+     * @param output output stream, contains encoded data
+     * @throws IOException if an error occurs during reading or writing
+     */
+    public void encode(InputStream input, OutputStream output) throws IOException {
+        encode(input, output, null);
+    }
+
+    /**
+     * Reads bytes from the input stream until the end of stream is
+     * reached and writes them encoded with the given dictionary into the
+     * output stream.  The dictionary is written once, before the blocks.
+     *
+     * @param input input stream contains data to encode
+     * @param output output stream, contains encoded data
+     * @param dictionary dictionary with a code for each byte of the input,
+     * or null to encode each block with its own dictionary
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the input contains a byte 
+     * without a code in the dictionary
+     */
+    public void encode(InputStream input, OutputStream output, 
+            HuffmanDict dictionary) throws IOException {
+        int headerSize = writeStreamHeader(output, dictionary, -1, interleaved, indexed);
+
+        BlockIndex index = indexed ? new BlockIndex(headerSize) : null;
+        OrderedOutput blocks = new OrderedOutput(pool, output, indexed ? index::add : null);
+        while (true) {
+            byte[] block = new byte[blockSize];
+            int n = readBlock(input, block);
+            if (n == 0)
+                break;
+            blocks.submit(() -> encodeBlock(ByteBuffer.wrap(block, 0, n), dictionary, interleaved));
+        }
+        blocks.finish();
+        Varint.write(output, 0); // end of stream
+        if (indexed)
+            index.write(output);
+    }
+
+    /**
+     * Encodes a file which is mapped into memory in regions of at most
+     * Histogram.MAP_SIZE bytes, so blocks are encoded directly from the
+     * mapped file without copying them.  The blocks are the same as the 
+     * ones written by encode(InputStream, OutputStream, HuffmanDict).
+     *
+     * @param input the file to encode, read from its beginning
+     * @param output output stream, contains encoded data
+     * @param dictionary dictionary with a code for each byte of the input,
+     * or null to encode each block with its own dictionary
+     * @throws IOException if an error occurs during reading or writing
+     */
+    public void encode(FileChannel input, OutputStream output, 
+            HuffmanDict dictionary) throws IOException {
+        long size = input.size();
+        int headerSize = writeStreamHeader(output, dictionary, size, interleaved, indexed);
+
+        // Map a whole number of blocks at a time, at most MAP_SIZE bytes
+        // since blocks are not larger
+        long regionSize = Math.max(1, Histogram.MAP_SIZE / blockSize) * blockSize;
+        BlockIndex index = indexed ? new BlockIndex(headerSize) : null;
+        OrderedOutput blocks = new OrderedOutput(pool, output, indexed ? index::add : null);
+        for (long pos = 0; pos < size; pos += regionSize) {
+            MappedByteBuffer region = input.map(FileChannel.MapMode.READ_ONLY,
+                    pos, Math.min(regionSize, size - pos));
+            for (int start = 0; start < region.limit(); start += blockSize) {
+                region.limit(Math.min(start + blockSize, region.capacity()));
+                region.position(start);
+                ByteBuffer block = region.slice();
+                region.limit(region.capacity());
+                blocks.submit(() -> encodeBlock(block, dictionary, interleaved));
+            }
+        }
+        blocks.finish();
+        Varint.write(output, 0); // end of stream
+        if (indexed)
+            index.write(output);
+    }
+
+    // Writes the stream header and returns its size, originalLength is -1
+    // if not known
+    static int writeStreamHeader(OutputStream output, HuffmanDict dictionary,
+            long originalLength, boolean interleaved, boolean indexed) throws IOException {
+        int flags = 0;
+        if (interleaved)
+            flags |= INTERLEAVED;
+        if (indexed)
+            flags |= INDEXED;
+        if (dictionary != null)
+            flags |= SHARED_DICTIONARY;
+        if (originalLength >= 0)
+            flags |= ORIGINAL_LENGTH;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(BLOCK_STREAM);
+        header.write(flags);
+        if (originalLength >= 0)
+            Varint.write(header, originalLength);
+        if (dictionary != null)
+            header.write(dictionary.toBytes());
+        header.writeTo(output);
+        return header.size();
+    }
+
+    /**
+     * Encodes the bytes between the position and the limit of block and
+     * returns the encoded block with its header.
+     * 
+     * @param block the block data
+     * @param dictionary the shared dictionary, or null to build a
+     * dictionary for the block
+     * @param interleaved true to encode the block in four parts
+     * @return the encoded block
+     */
+    static byte[] encodeBlock(ByteBuffer block, HuffmanDict dictionary, 
+            boolean interleaved) throws IOException {
+        int from = block.position();
+        int to = block.limit();
+        HuffmanDict dict = dictionary;
+        int counts[] = null;
+        byte header[] = new byte[0];
+        if (dict == null) {
+            counts = new int[256];
+            Histogram.count(block, from, to, counts);
+            dict = new HuffmanDict();
+            dict.addCounts(counts);
+            dict.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+            header = dict.toBytes();
+            if (!dict.isSingle() && encodedSize(dict, header, counts, interleaved) >= to - from)
+                return storedBlock(block, counts);
+        }
+
+        long time = Metrics.start();
+        ByteArrayOutputStream coded = new ByteArrayOutputStream((to - from) / 2 + 16);
+        BitWriter writer = new BitWriter(coded);
+        byte jumpTable[] = new byte[0];
+        if (dict.isSingle()) {
+            // A run of a single byte has no encoded data
+            for (int i = from; i < to; i++) {
+                if (block.get(i) != dict.getSingleByte())
+                    throw new IllegalArgumentException("No code found for byte " + block.get(i));
+            }
+        }
+        else if (!interleaved) {
+            writeCodes(block, from, to, dict, writer);
+        }
+        else {
+            // Each part starts with a new byte, the sizes of the first 
+            // three go into the jump table
+            jumpTable = new byte[TableDecoder.JUMP_TABLE_SIZE];
+            int part = TableDecoder.interleavedPart(to - from);
+            for (int k = 0; k < TableDecoder.STREAMS; k++) {
+                int start = coded.size();
+                writeCodes(block, Math.min(to, from + k * part), 
+                        Math.min(to, from + (k + 1) * part), dict, writer);
+                if (k < TableDecoder.STREAMS - 1) {
+                    int size = coded.size() - start;
+                    for (int i = 0; i < 4; i++)
+                        jumpTable[4 * k + i] = (byte)(size >>> (8 * i));
+                }
+            }
+        }
+
+        Metrics.phase(Metrics.Phase.ENCODE, time, to - from);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(coded.size() + 300);
+        Varint.write(output, to - from);
+        output.write(header);
+        Varint.write(output, jumpTable.length + coded.size());
+        output.write(jumpTable);
+        coded.writeTo(output);
+        Metrics.block(to - from, output.size(), 8L * coded.size(), counts);
+        return output.toByteArray();
+    }
+
+    // Returns the number of bytes of the dictionary and the encoded data
+    // of a block with the given counts
+    private static long encodedSize(HuffmanDict dict, byte header[], int counts[],
+            boolean interleaved) {
+        long bits = 0;
+        for (int b = 0; b < 256; b++)
+            bits += (long)counts[b] * dict.getCodeLength((byte)b);
+        long size = header.length + (bits + 7) / 8;
+        if (interleaved)
+            size += TableDecoder.JUMP_TABLE_SIZE + TableDecoder.STREAMS - 1;
+        return size;
+    }
+
+    // Returns the block stored without encoding
+    private static byte[] storedBlock(ByteBuffer block, int counts[]) throws IOException {
+        int length = block.remaining();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length + 16);
+        Varint.write(output, length);
+        output.write(HuffmanDict.STORED_HEADER);
+        Varint.write(output, length);
+        byte data[] = new byte[length];
+        block.duplicate().get(data);
+        output.write(data);
+        Metrics.block(length, output.size(), 8L * length, counts);
+        return output.toByteArray();
+    }
+
+    // Writes the codes of the bytes from..to of the block and flushes
+    // the writer
+    private static void writeCodes(ByteBuffer block, int from, int to,
+            HuffmanDict dict, BitWriter writer) throws IOException {
+        for (int i = from; i < to; i++) {
+            byte c = block.get(i);
+            int length = dict.getCodeLength(c);
+            if (length == 0)
+                throw new IllegalArgumentException("No code found for byte " + c);
+            writer.write(dict.getCodeBits(c), length);
+        }
+        writer.flush();
+    }
+
+    // Reads from input until the block is full or the input ends, and 
+    // returns the number of bytes read
+    private static int readBlock(InputStream input, byte[] block) throws IOException {
+        int n = 0;
+        while (n < block.length) {
+            int count = input.read(block, n, block.length - n);
+            if (count == -1)
+                break;
+            n += count;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,193 @@
+package huffman;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The positions of the blocks of a block stream, both in the stream and
+ * in the decoded data.  BlockEncoder writes the index after the end of
+ * the stream when BlockEncoder.INDEXED is set, and RandomAccessDecoder
+ * reads it to find the blocks of a range of decoded bytes.
+ *
+ * The index is stored as INDEX_HEADER, the position of the first block
+ * and the number of blocks, followed by the number of decoded bytes and
+ * the number of stream bytes of each block, all as Varints.  It is
+ * followed by its own position in the stream, as an 8 byte little endian
+ * number, so it can be found from the end of the file.
+ */
+class BlockIndex {
+    // First byte of the index
+    static final byte INDEX_HEADER = 'I';
+
+    // Size of the position stored after the index
+    static final int TRAILER_SIZE = 8;
+
+    private long rawOffsets[];  // start of each block in the decoded data
+    private long offsets[];     // start of each block in the stream
+    private int count;          // number of blocks, the arrays have one more
+
+    /**
+     * Creates an index without blocks.
+     *
+     * @param firstBlock the position of the first block in the stream
+     */
+    BlockIndex(long firstBlock) {
+        rawOffsets = new long[16];
+        offsets = new long[16];
+        offsets[0] = firstBlock;
+    }
+
+    /**
+     * Adds a block encoded by BlockEncoder.encodeBlock(), which starts
+     * with its number of decoded bytes.
+     *
+     * @param block the encoded block
+     */
+    void add(byte[] block) {
+        add(Varint.read(ByteBuffer.wrap(block)), block.length);
+    }
+
+    /**
+     * Adds a block.
+     *
+     * @param rawLength the number of decoded bytes of the block
+     * @param length the number of bytes of the block in the stream
+     */
+    void add(long rawLength, long length) {
+        if (count + 1 == offsets.length) {
+            rawOffsets = Arrays.copyOf(rawOffsets, 2 * rawOffsets.length);
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        rawOffsets[count + 1] = rawOffsets[count] + rawLength;
+        offsets[count + 1] = offsets[count] + length;
+        count++;
+    }
+
+    /**
+     * Returns the number of blocks.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of decoded bytes of all the blocks.
+     */
+    long rawLength() {
+        return rawOffsets[count];
+    }
+
+    /**
+     * Returns the position of the block in the decoded data, or the
+     * decoded length if block is count().
+     */
+    long rawOffset(int block) {
+        return rawOffsets[block];
+    }
+
+    /**
+     * Returns the position of the block in the stream, or the position
+     * of the end of the stream if block is count().
+     */
+    long offset(int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Returns the block containing the decoded byte at the given position.
+     *
+     * @param rawPosition a position smaller than rawLength()
+     * @return the block index
+     */
+    int blockAt(long rawPosition) {
+        int i = Arrays.binarySearch(rawOffsets, 0, count + 1, rawPosition);
+        if (i < 0)
+            return -i - 2;
+        // Skip empty blocks, which start where the next one starts
+        while (i < count && rawOffsets[i + 1] == rawPosition)
+            i++;
+        return i;
+    }
+
+    /**
+     * Writes the index and its position, which is the position of the
+     * stream end marker plus 1.
+     *
+     * @param output the output stream, after the end of the stream
+     * @throws IOException if an error occurs during writing
+     */
+    void write(OutputStream output) throws IOException {
+        output.write(INDEX_HEADER);
+        Varint.write(output, offsets[0]);
+        Varint.write(output, count);
+        for (int i = 0; i < count; i++) {
+            Varint.write(output, rawOffsets[i + 1] - rawOffsets[i]);
+            Varint.write(output, offsets[i + 1] - offsets[i]);
+        }
+        long position = offsets[count] + 1;
+        for (int i = 0; i < TRAILER_SIZE; i++)
+            output.write((int)(position >>> (8 * i)));
+    }
+
+    /**
+     * Reads the index at the end of a file.
+     *
+     * @param channel the file, which ends with the index
+     * @return the index
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the file does not end with a
+     * valid index
+     */
+    static BlockIndex read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < TRAILER_SIZE + 1)
+            throw new IllegalArgumentException("Invalid block index");
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, trailer, size - TRAILER_SIZE);
+        long position = trailer.getLong(0);
+        if (position <= 0 || position > size - TRAILER_SIZE - 1
+                || size - TRAILER_SIZE - position > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid block index position: " + position);
+
+        ByteBuffer bytes = ByteBuffer.allocate((int)(size - TRAILER_SIZE - position));
+        readFully(channel, bytes, position);
+        bytes.flip();
+        try {
+            if (bytes.get() != INDEX_HEADER)
+                throw new IllegalArgumentException("Invalid block index");
+            BlockIndex index = new BlockIndex(Varint.read(bytes));
+            long count = Varint.read(bytes);
+            if (count > bytes.remaining() / 2)
+                throw new IllegalArgumentException("Invalid block index");
+            for (long i = 0; i < count; i++)
+                index.add(Varint.read(bytes), Varint.read(bytes));
+            if (bytes.hasRemaining() || index.offset(index.count) + 1 != position)
+                throw new IllegalArgumentException("Invalid block index");
+            return index;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Block index too short");
+        }
+    }
+
+    /**
+     * Reads bytes from the channel starting at the given position until
+     * the buffer is full.
+     *
+     * @throws EOFException if the channel ends before
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException();
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package huffman;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream which reads the bytes of a ByteBuffer from its position
+ * to its limit, advancing the buffer position.
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,222 @@
+package huffman;
+import java.util.Arrays;
+
+/**
+ * Computes Huffman code lengths from byte frequencies using only arrays
+ * of primitives, which are allocated once and reused by every call.
+ *
+ * The frequencies are sorted, packed with their byte into longs, and the
+ * tree is built with the two queue method: the leaves are taken in order
+ * of frequency and the joined nodes are created in order of frequency,
+ * so the two smallest nodes are always at the head of one of the queues.
+ * If the codes are longer than the limit, the lengths are computed with
+ * the package-merge algorithm instead.
+ *
+ * A CodeLengthBuilder must not be used by several threads at the same time.
+ */
+public class CodeLengthBuilder {
+    private static final int SYMBOLS = 256;
+
+    private final long leaves[] = new long[SYMBOLS];       // frequency << 8 | index
+    private final long leafWeights[] = new long[SYMBOLS];
+    private final int symbols[] = new int[SYMBOLS];
+    private final int leafParents[] = new int[SYMBOLS];
+    private final long nodeWeights[] = new long[SYMBOLS];
+    private final int nodeParents[] = new int[SYMBOLS];
+    private final int nodeDepths[] = new int[SYMBOLS];
+
+    // Package-merge lists, allocated the first time a limit is needed
+    private long weights[] = new long[2 * SYMBOLS];
+    private long merged[] = new long[2 * SYMBOLS];
+    private boolean isLeaf[] = new boolean[0];  // 2 * SYMBOLS items for each length
+
+    // Used by codes() to assign the canonical codes
+    private final int lengthCounts[] = new int[BitWriter.MAX_CODE_LENGTH + 1];
+    private final int nextCode[] = new int[BitWriter.MAX_CODE_LENGTH + 1];
+
+    private long lengthLimitCost;
+
+    /**
+     * Computes the Huffman code lengths of at most maxLength bits for the
+     * given frequencies.  A single byte with non-zero frequency gets a
+     * code length of 0.
+     *
+     * @param freqs frequencies of at most 256 symbols
+     * @param maxLength maximum code length in bits
+     * @param lengths array where the code length of each symbol is stored,
+     * 0 for symbols with frequency 0
+     * @return the length of the longest code
+     * @throws IllegalArgumentException if there are more than
+     * 2^maxLength symbols with non-zero frequency
+     */
+    public int build(int freqs[], int maxLength, int lengths[]) {
+        int n = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            lengths[i] = 0;
+            if (freqs[i] != 0)
+                leaves[n++] = ((long)freqs[i] << 8) | i;
+        }
+        if (maxLength < 1 || (maxLength < 8 && n > (1 << maxLength)))
+            throw new IllegalArgumentException("Code length limit too small: " + maxLength);
+        lengthLimitCost = 0;
+        if (n < 2)
+            return 0;
+
+        Arrays.sort(leaves, 0, n);
+        for (int i = 0; i < n; i++) {
+            leafWeights[i] = leaves[i] >>> 8;
+            symbols[i] = (int)leaves[i] & 0xFF;
+        }
+
+        int maxDepth = huffmanLengths(n, lengths);
+        if (maxDepth <= maxLength)
+            return maxDepth;
+
+        long huffmanBits = bitCount(freqs, lengths);
+        limitedLengths(n, maxLength, lengths);
+        lengthLimitCost = bitCount(freqs, lengths) - huffmanBits;
+        return maxLength;
+    }
+
+    /**
+     * Returns the number of bits the encoded data grew by because of the
+     * code length limit in the last call to build(), or 0 if the Huffman
+     * codes were within the limit.
+     */
+    public long getLengthLimitCost() {
+        return lengthLimitCost;
+    }
+
+    /**
+     * Computes the canonical codes for the given code lengths, assigned
+     * as in HuffmanDict.makeCanonicalTree().
+     *
+     * @param lengths code lengths of at most BitWriter.MAX_CODE_LENGTH bits,
+     * indexed by byte + 128
+     * @param codeBits array where the codes are stored in the order
+     * expected by BitWriter.write(), indexed by byte + 128
+     */
+    public void codes(int lengths[], int codeBits[]) {
+        Arrays.fill(lengthCounts, 0);
+        for (int i = 0; i < SYMBOLS; i++)
+            lengthCounts[lengths[i]]++;
+        lengthCounts[0] = 0;
+
+        int code = 0;
+        for (int len = 1; len <= BitWriter.MAX_CODE_LENGTH; len++) {
+            code = (code + lengthCounts[len - 1]) << 1;
+            nextCode[len] = code;
+        }
+
+        for (int i = 0; i < SYMBOLS; i++) {
+            int len = lengths[i];
+            codeBits[i] = (len == 0) ? 0 : Integer.reverse(nextCode[len]++) >>> (32 - len);
+        }
+    }
+
+    // Builds the Huffman tree of the n sorted leaves and stores the depth
+    // of each leaf in lengths.  Returns the depth of the tree.
+    private int huffmanLengths(int n, int lengths[]) {
+        int leaf = 0;       // next leaf to join
+        int node = 0;       // next joined node to join
+        for (int created = 0; created < n - 1; created++) {
+            long weight = 0;
+            for (int k = 0; k < 2; k++) {
+                // Take the smaller head, a leaf if both are equal
+                if (leaf < n && (node == created || leafWeights[leaf] <= nodeWeights[node])) {
+                    weight += leafWeights[leaf];
+                    leafParents[leaf++] = created;
+                }
+                else {
+                    weight += nodeWeights[node];
+                    nodeParents[node++] = created;
+                }
+            }
+            nodeWeights[created] = weight;
+        }
+
+        // Nodes are created after their children, the last one is the root
+        int root = n - 2;
+        nodeDepths[root] = 0;
+        for (int i = root - 1; i >= 0; i--)
+            nodeDepths[i] = nodeDepths[nodeParents[i]] + 1;
+
+        int maxDepth = 0;
+        for (int i = 0; i < n; i++) {
+            int depth = nodeDepths[leafParents[i]] + 1;
+            lengths[symbols[i]] = depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Computes optimal code lengths of at most maxLen bits for the n
+     * sorted leaves with the package-merge algorithm.
+     *
+     * The list for the longest length holds the leaves sorted by frequency.
+     * The list for each shorter length is the merge of the leaves with
+     * packages made of pairs of items from the next list.  The first 2n-2
+     * items of the list for length 1 give the code lengths: each leaf gets
+     * one bit for every list where it is selected, and each selected
+     * package selects its two items in the next list.
+     */
+    private void limitedLengths(int n, int maxLen, int lengths[]) {
+        if (isLeaf.length < maxLen * 2 * SYMBOLS)
+            isLeaf = new boolean[maxLen * 2 * SYMBOLS];
+
+        // isLeaf[len * 2 * SYMBOLS + k] tells if item k in the list for
+        // length len+1 is a leaf or a package
+        System.arraycopy(leafWeights, 0, weights, 0, n);
+        int size = n;
+        Arrays.fill(isLeaf, (maxLen - 1) * 2 * SYMBOLS, (maxLen - 1) * 2 * SYMBOLS + n, true);
+        for (int len = maxLen - 2; len >= 0; len--) {
+            int packages = size / 2;
+            int base = len * 2 * SYMBOLS;
+            int leaf = 0;
+            int pkg = 0;
+            for (int k = 0; k < n + packages; k++) {
+                long pkgWeight = (pkg < packages) ? weights[2*pkg] + weights[2*pkg + 1] : Long.MAX_VALUE;
+                if (leaf < n && leafWeights[leaf] <= pkgWeight) {
+                    merged[k] = leafWeights[leaf++];
+                    isLeaf[base + k] = true;
+                }
+                else {
+                    merged[k] = pkgWeight;
+                    isLeaf[base + k] = false;
+                    pkg++;
+                }
+            }
+            long swap[] = weights;
+            weights = merged;
+            merged = swap;
+            size = n + packages;
+        }
+
+        // Select the items, starting with the first 2n-2 of the
+        // list for length 1
+        for (int i = 0; i < n; i++)
+            lengths[symbols[i]] = 0;
+        int selected = 2*n - 2;
+        for (int len = 0; len < maxLen && selected > 0; len++) {
+            int leaves = 0;
+            int base = len * 2 * SYMBOLS;
+            for (int k = 0; k < selected; k++)
+                if (isLeaf[base + k])
+                    leaves++;
+            // leaves are merged in order, the first ones are selected
+            for (int i = 0; i < leaves; i++)
+                lengths[symbols[i]]++;
+            selected = 2 * (selected - leaves);
+        }
+    }
+
+    // Returns the number of bits needed to encode the frequencies with
+    // codes of the given lengths
+    private static long bitCount(int freqs[], int lengths[]) {
+        long bits = 0;
+        for (int i = 0; i < SYMBOLS; i++)
+            bits += (long)freqs[i] * lengths[i];
+        return bits;
+    }
+}
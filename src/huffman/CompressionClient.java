@@ -0,0 +1,217 @@
+package huffman;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Connection to a CompressionServer running on the same machine.
+ *
+ * send() writes several requests before reading their responses, so the
+ * server processes small requests in batches.  A CompressionClient must
+ * not be used by several threads at the same time; each thread can open
+ * its own connection.
+ */
+public class CompressionClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "CompressionClient writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Connects to the server listening on the given port of the loopback
+     * address.
+     *
+     * @param port the port of the server
+     * @throws IOException if the connection cannot be opened
+     */
+    public CompressionClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Compresses the data into a block stream.
+     *
+     * @param data the data
+     * @return the block stream
+     * @throws IOException if an error occurs during reading or writing
+     */
+    public byte[] compress(byte[] data) throws IOException {
+        return send(CompressionServer.COMPRESS, 0, Collections.singletonList(data)).get(0);
+    }
+
+    /**
+     * Decompresses a block stream.
+     *
+     * @param data the block stream
+     * @return the decompressed data
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the block stream is not valid
+     */
+    public byte[] decompress(byte[] data) throws IOException {
+        return send(CompressionServer.DECOMPRESS, 0, Collections.singletonList(data)).get(0);
+    }
+
+    /**
+     * Encodes a message with a static dictionary known to the server.
+     *
+     * @param dictionaryId the ID of the dictionary
+     * @param message the message
+     * @return the encoded message
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the server has no dictionary
+     * with the ID
+     */
+    public byte[] encode(int dictionaryId, byte[] message) throws IOException {
+        return send(CompressionServer.ENCODE, dictionaryId, Collections.singletonList(message)).get(0);
+    }
+
+    /**
+     * Decodes a message encoded with a static dictionary known to the
+     * server.
+     *
+     * @param dictionaryId the ID of the dictionary
+     * @param message the encoded message
+     * @return the message
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the server has no dictionary
+     * with the ID or the message is not valid
+     */
+    public byte[] decode(int dictionaryId, byte[] message) throws IOException {
+        return send(CompressionServer.DECODE, dictionaryId, Collections.singletonList(message)).get(0);
+    }
+
+    /**
+     * Sends a request with the same operation for each item and returns
+     * the results in order.  The requests are written by another thread,
+     * flushed in groups of up to CompressionServer.BATCH_SIZE bytes, while
+     * the responses are read in the calling thread, so neither side waits
+     * for the other to read what it has written.
+     *
+     * @param operation one of the operations of CompressionServer
+     * @param dictionaryId the ID of the static dictionary, used by ENCODE
+     * and DECODE
+     * @param items the data of each request
+     * @return the result of each request
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if a request failed
+     */
+    public List<byte[]> send(byte operation, int dictionaryId, List<byte[]> items)
+            throws IOException {
+        Future<?> written = writer.submit(() -> {
+            try {
+                writeRequests(operation, dictionaryId, items);
+            }
+            catch (IOException e) {
+                socket.close(); // unblock the reader
+                throw e;
+            }
+            return null;
+        });
+
+        // Read all the responses before reporting a failure, so the
+        // connection can be used for the next requests
+        List<byte[]> results = new ArrayList<>(items.size());
+        String error = null;
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                byte status = in.readByte();
+                long length = Varint.read(in);
+                if (length > CompressionServer.MAX_REQUEST_SIZE)
+                    throw new IOException("Response too large: " + length);
+                byte result[] = new byte[(int)length];
+                in.readFully(result);
+                if (status == CompressionServer.OK)
+                    results.add(result);
+                else if (status == CompressionServer.FAILED && error == null)
+                    error = new String(result, StandardCharsets.UTF_8);
+                else if (status != CompressionServer.FAILED)
+                    throw new IOException("Invalid response: " + status);
+            }
+        }
+        catch (IOException e) {
+            socket.close(); // unblock the writer
+            waitFor(written);
+            throw e;
+        }
+        waitFor(written);
+        if (error != null)
+            throw new IllegalArgumentException(error);
+        return results;
+    }
+
+    private void writeRequests(byte operation, int dictionaryId, List<byte[]> items)
+            throws IOException {
+        long size = 0;
+        for (byte data[] : items) {
+            out.write(operation);
+            if (operation == CompressionServer.ENCODE || operation == CompressionServer.DECODE)
+                Varint.write(out, dictionaryId);
+            Varint.write(out, data.length);
+            out.write(data);
+            size += data.length;
+            if (size >= CompressionServer.BATCH_SIZE) {
+                out.flush();
+                size = 0;
+            }
+        }
+        out.flush();
+    }
+
+    // Waits for the requests to be written, throwing the exception of
+    // the writer if it failed
+    private static void waitFor(Future<?> written) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    written.get();
+                    return;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        socket.close();
+    }
+}
@@ -0,0 +1,335 @@
+package huffman;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A local service which compresses and decompresses the data sent to it
+ * over socket connections, so many small jobs share one process which
+ * is started and warmed up once.
+ *
+ * The server only accepts connections from the loopback address.  A
+ * client sends any number of requests on a connection and reads one
+ * response for each request, in order.  A request is an operation byte
+ * followed by:
+ *
+ * <ul>
+ * <li>COMPRESS: the length of the data, as a Varint, and the data, which
+ * is compressed into a block stream by HuffmanCodec</li>
+ * <li>DECOMPRESS: the length and the bytes of a block stream</li>
+ * <li>ENCODE: the ID of a static dictionary, as a Varint, and the length
+ * and the bytes of a message, which is encoded by StaticDictionary</li>
+ * <li>DECODE: the ID of a static dictionary and the length and the bytes
+ * of an encoded message</li>
+ * </ul>
+ *
+ * A response is OK followed by the length and the bytes of the result,
+ * or FAILED followed by the length and the bytes of an error message in
+ * UTF-8.  The connection is closed after a request which is not valid.
+ *
+ * Each connection is read by its own thread, and at most the given number
+ * of threads process requests at the same time.  The requests a client
+ * sends without waiting for the responses are read together, up to
+ * BATCH_SIZE bytes, processed as one batch and answered together.  The
+ * codecs, with their decoding tables, are reused by the requests, and the
+ * static dictionaries are loaded once by a DictionaryCache and shared by
+ * all the threads.
+ */
+public class CompressionServer implements Closeable, Runnable {
+    /** Compresses the data into a block stream */
+    public static final byte COMPRESS = 'C';
+    /** Decompresses a block stream */
+    public static final byte DECOMPRESS = 'D';
+    /** Encodes a message with a static dictionary */
+    public static final byte ENCODE = 'E';
+    /** Decodes a message encoded with a static dictionary */
+    public static final byte DECODE = 'U';
+
+    /** First byte of the response to a request which succeeded */
+    public static final byte OK = 'K';
+    /** First byte of the response to a request which failed */
+    public static final byte FAILED = 'F';
+
+    /** Largest request or result, in bytes */
+    public static final int MAX_REQUEST_SIZE = 256 * 1024 * 1024;
+
+    /** Largest number of request bytes processed as one batch */
+    public static final int BATCH_SIZE = 64 * 1024;
+
+    private final ServerSocket socket;
+    private final DictionaryCache dictionaries;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<HuffmanCodec> codecs = new ConcurrentLinkedQueue<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "huffman-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Creates a server listening on the given port of the loopback
+     * address.  Call run() or start() to accept connections.
+     *
+     * @param port the port, or 0 to use any free port
+     * @param concurrency the largest number of requests processed at the
+     * same time
+     * @param dictionaries the static dictionaries used by ENCODE and DECODE
+     * @throws IOException if the port cannot be opened
+     */
+    public CompressionServer(int port, int concurrency, DictionaryCache dictionaries)
+            throws IOException {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        this.dictionaries = dictionaries;
+        this.permits = new Semaphore(concurrency);
+        this.socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Returns the port where the server listens.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections in a new thread.
+     */
+    public void start() {
+        new Thread(this, "huffman-server").start();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            Socket connection;
+            try {
+                connection = socket.accept();
+            }
+            catch (IOException e) {
+                if (closed)
+                    break;
+                continue;
+            }
+            open.add(connection);
+            connections.execute(() -> serve(connection));
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open connections.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+        for (Socket connection : open)
+            connection.close();
+        connections.shutdown();
+    }
+
+    // A request read from a connection, and its response once processed
+    private static class Request {
+        byte operation;
+        int dictionaryId;
+        byte data[];
+        byte status;
+        byte result[];
+    }
+
+    // Reads and answers the requests of a connection until it is closed
+    private void serve(Socket connection) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+            List<Request> batch = new ArrayList<>();
+            while (true) {
+                String error = null;
+                try {
+                    readBatch(in, batch);
+                }
+                catch (IllegalArgumentException e) {
+                    error = e.getMessage();
+                }
+                if (batch.isEmpty() && error == null)
+                    break; // end of stream
+                process(batch);
+                for (Request request : batch)
+                    writeResponse(out, request.status, request.result);
+                batch.clear();
+                if (error != null) {
+                    writeResponse(out, FAILED, error.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    break;
+                }
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            // closed by the client, in the middle of a request, or by close()
+        }
+        finally {
+            open.remove(connection);
+            try {
+                connection.close();
+            }
+            catch (IOException e) {
+                // nothing left to do with the connection
+            }
+        }
+    }
+
+    // Reads a request, waiting for it, and the requests which follow it
+    // without waiting, up to BATCH_SIZE bytes
+    private static void readBatch(DataInputStream in, List<Request> batch) throws IOException {
+        long size = 0;
+        do {
+            int operation = in.read();
+            if (operation == -1)
+                return;
+            Request request = new Request();
+            request.operation = (byte)operation;
+            switch (request.operation) {
+            case COMPRESS:
+            case DECOMPRESS:
+                break;
+            case ENCODE:
+            case DECODE:
+                long id = Varint.read(in);
+                if (id > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("Invalid dictionary ID: " + id);
+                request.dictionaryId = (int)id;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+            }
+            long length = Varint.read(in);
+            if (length > MAX_REQUEST_SIZE)
+                throw new IllegalArgumentException("Request too large: " + length);
+            request.data = new byte[(int)length];
+            in.readFully(request.data);
+            batch.add(request);
+            size += length;
+        } while (size < BATCH_SIZE && in.available() > 0);
+    }
+
+    // Processes the batch with one permit and one codec
+    private void process(List<Request> batch) {
+        permits.acquireUninterruptibly();
+        HuffmanCodec codec = codecs.poll();
+        if (codec == null)
+            codec = new HuffmanCodec(BlockEncoder.DEFAULT_BLOCK_SIZE, true);
+        try {
+            for (Request request : batch) {
+                try {
+                    request.result = execute(request, codec);
+                    request.status = OK;
+                }
+                catch (RuntimeException | IOException e) {
+                    String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+                    request.result = message.getBytes(StandardCharsets.UTF_8);
+                    request.status = FAILED;
+                }
+            }
+        }
+        finally {
+            codecs.add(codec);
+            permits.release();
+        }
+    }
+
+    // Returns the result of the request
+    private byte[] execute(Request request, HuffmanCodec codec) throws IOException {
+        byte data[] = request.data;
+        ByteBuffer output;
+        switch (request.operation) {
+        case COMPRESS:
+            output = ByteBuffer.allocate(codec.maxCompressedLength(data.length));
+            codec.compress(data, 0, data.length, output);
+            break;
+        case DECOMPRESS:
+            ByteBuffer input = ByteBuffer.wrap(data);
+            long length = HuffmanCodec.decompressedLength(input);
+            if (length < 0)
+                return decompressUnknownLength(input, codec);
+            output = ByteBuffer.allocate(resultSize(length));
+            codec.decompress(input, output);
+            break;
+        case ENCODE:
+            StaticDictionary dictionary = dictionary(request.dictionaryId);
+            output = ByteBuffer.allocate(dictionary.maxEncodedLength(data.length));
+            dictionary.encode(data, 0, data.length, output);
+            break;
+        default:
+            ByteBuffer message = ByteBuffer.wrap(data);
+            output = ByteBuffer.allocate(resultSize(Varint.read(message.duplicate())));
+            dictionary(request.dictionaryId).decode(message, output);
+            break;
+        }
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    // Decompresses a stream which does not store its original length into
+    // a buffer which grows up to MAX_REQUEST_SIZE bytes, so a small request
+    // cannot expand into a result the client does not accept.  The codec
+    // checks the length of each block before decoding it, so a buffer
+    // which is too small costs little.
+    private static byte[] decompressUnknownLength(ByteBuffer input, HuffmanCodec codec) {
+        int size = (int)Math.min(MAX_REQUEST_SIZE, Math.max(BATCH_SIZE, 4L * input.remaining()));
+        while (true) {
+            ByteBuffer output = ByteBuffer.allocate(size);
+            try {
+                codec.decompress(input.duplicate(), output);
+                return Arrays.copyOf(output.array(), output.position());
+            }
+            catch (BufferOverflowException e) {
+                if (size == MAX_REQUEST_SIZE)
+                    throw new IllegalArgumentException("Result too large");
+                size = (int)Math.min(MAX_REQUEST_SIZE, 2L * size);
+            }
+        }
+    }
+
+    private StaticDictionary dictionary(int id) {
+        if (dictionaries == null)
+            throw new IllegalArgumentException("Unknown dictionary: " + id);
+        return dictionaries.get(id);
+    }
+
+    private static int resultSize(long length) {
+        if (length > MAX_REQUEST_SIZE)
+            throw new IllegalArgumentException("Result too large: " + length);
+        return (int)length;
+    }
+
+    // Writes the status, the length of the result and the result
+    private static void writeResponse(OutputStream out, byte status, byte result[]) throws IOException {
+        out.write(status);
+        Varint.write(out, result.length);
+        out.write(result);
+    }
+}
@@ -0,0 +1,431 @@
+package huffman;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses data in memory with order-1 context
+ * modeling: each byte is encoded with the Huffman codes of the byte
+ * before it, so structured data like log lines, where a byte often
+ * determines the next one, compresses better than with HuffmanCodec.
+ * A byte which is always followed by the same byte costs no bits at all.
+ *
+ * The codes are limited to MAX_CODE_LENGTH bits, so each context is
+ * decoded with a single table lookup per byte.
+ *
+ * The compressed data starts with the byte CONTEXT_STREAM and the number
+ * of bytes compressed, as a Varint, followed by the blocks.  Each block is
+ * stored as:
+ *  - the number of bytes in the block, as a Varint
+ *  - a bitmap of CONTEXT_BITMAP_SIZE bytes telling which contexts occur in
+ *    the block, the lowest bit of the first byte stands for the byte 0
+ *  - the codes of each context which occurs, in order of the context byte:
+ *    the code length table written by HuffmanDict.writeLengthTable(), or
+ *    the byte SINGLE_SYMBOL followed by the only byte which follows the
+ *    context, which is then encoded without any bits
+ *  - the number of bytes of encoded data, as a Varint
+ *  - the encoded data
+ * The stream ends with a block length of 0.  The first byte of each block
+ * is encoded in the context of the byte 0, so blocks can be decoded
+ * independently.
+ *
+ * Like HuffmanCodec, a codec keeps its tables from one call to the next
+ * and must not be used by several threads at the same time.
+ */
+public class ContextCodec {
+    // First byte of a context stream
+    static final byte CONTEXT_STREAM = 'O';
+
+    // Marks a context followed by a single byte
+    static final byte SINGLE_SYMBOL = 'S';
+
+    // Longest code, and number of bits used to index the decoding tables
+    static final int MAX_CODE_LENGTH = 11;
+
+    static final int CONTEXT_BITMAP_SIZE = 256 / 8;
+
+    private static final int STREAM_OVERHEAD = 1 + Varint.MAX_LENGTH + 1;
+    private static final int BLOCK_OVERHEAD = Varint.MAX_LENGTH + CONTEXT_BITMAP_SIZE
+            + 256 * HuffmanDict.MAX_LENGTH_TABLE_SIZE + Varint.MAX_LENGTH;
+
+    private final int blockSize;
+
+    // Number of times each byte follows each context, indexed by
+    // context << 8 | byte, with unsigned byte values
+    private final int counts[] = new int[256 * 256];
+
+    // The code of each byte in each context, in the order written by
+    // BitWriter, with its length in bits 16 and up
+    private final int codes[] = new int[256 * 256];
+
+    // Decoding tables: the entry for the next bits of a context is
+    // table[tableOffset[context] + (bits & tableMask[context])], holding
+    // the decoded byte and the length of its code in bits 8 and up, or
+    // NO_CODE for contexts which do not occur in the block
+    private short table[] = new short[256 * 2];
+    private final int tableOffset[] = new int[256];
+    private final int tableMask[] = new int[256];
+    private static final short NO_CODE = -1;
+
+    private final int freqs[] = new int[256];      // indexed by byte + 128
+    private final int lengths[] = new int[256];    // indexed by byte + 128
+    private final int codeBits[] = new int[256];   // indexed by byte + 128
+    private final CodeLengthBuilder builder = new CodeLengthBuilder();
+    private byte scratch[] = new byte[0];  // data of buffers without an array
+
+    /**
+     * Creates a codec which compresses blocks of
+     * BlockEncoder.DEFAULT_BLOCK_SIZE bytes.
+     */
+    public ContextCodec() {
+        this(BlockEncoder.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a codec which compresses blocks of the given size.  Each
+     * block stores up to 256 code tables, so blocks smaller than about
+     * 64 KB are better compressed by HuffmanCodec.
+     * @param blockSize the number of input bytes in each block
+     */
+    public ContextCodec(int blockSize) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the largest number of bytes compress() can write for the
+     * given number of input bytes.
+     *
+     * @param length the number of input bytes
+     * @return the size of a buffer large enough for the compressed data
+     * @throws IllegalArgumentException if the compressed data could be
+     * larger than an array
+     */
+    public int maxCompressedLength(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length: " + length);
+        long blocks = (length + (long)blockSize - 1) / blockSize;
+        long max = ((long)length * MAX_CODE_LENGTH + 7) / 8 + blocks * (BLOCK_OVERHEAD + 1)
+                + STREAM_OVERHEAD;
+        if (max > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Input too large: " + length);
+        return (int)max;
+    }
+
+    /**
+     * Compresses the bytes between the position and the limit of src into
+     * dst, starting at the position of dst.  The position of src is moved
+     * to its limit and the position of dst after the compressed data.
+     *
+     * @param src the data to compress
+     * @param dst the buffer where the compressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small, then the
+     * positions of the buffers are not specified
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        int from = src.position();
+        int to = src.limit();
+        int written;
+        if (src.hasArray())
+            written = compress(src.array(), null, src.arrayOffset() + from,
+                    src.arrayOffset() + to, dst);
+        else
+            written = compress(null, src, from, to, dst);
+        src.position(to);
+        return written;
+    }
+
+    /**
+     * Compresses length bytes of src, starting at offset, into dst,
+     * starting at the position of dst.  The position of dst is moved after
+     * the compressed data.
+     *
+     * @param src the data to compress
+     * @param offset position of the first byte to compress
+     * @param length number of bytes to compress
+     * @param dst the buffer where the compressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small, then the
+     * position of dst is not specified
+     */
+    public int compress(byte[] src, int offset, int length, ByteBuffer dst) {
+        if (offset < 0 || length < 0 || offset + length > src.length)
+            throw new IndexOutOfBoundsException();
+        return compress(src, null, offset, offset + length, dst);
+    }
+
+    // Compresses the bytes from..to of the array, or of the buffer if the
+    // array is null
+    private int compress(byte[] array, ByteBuffer buffer, int from, int to,
+            ByteBuffer dst) {
+        int start = dst.position();
+        dst.put(CONTEXT_STREAM);
+        Varint.write(dst, to - from);
+
+        for (int pos = from; pos < to; pos += blockSize) {
+            int end = Math.min(to, pos + blockSize);
+            Arrays.fill(counts, 0);
+            int prev = 0;
+            for (int i = pos; i < end; i++) {
+                int b = ((array != null) ? array[i] : buffer.get(i)) & 0xFF;
+                counts[prev << 8 | b]++;
+                prev = b;
+            }
+
+            Varint.write(dst, end - pos);
+            int bitmapPos = dst.position();
+            for (int i = 0; i < CONTEXT_BITMAP_SIZE; i++)
+                dst.put((byte)0);
+            long codedBits = 0;
+            for (int context = 0; context < 256; context++) {
+                long bits = writeCodes(context, dst);
+                if (bits >= 0) {
+                    int index = bitmapPos + context / 8;
+                    dst.put(index, (byte)(dst.get(index) | (1 << (context % 8))));
+                    codedBits += bits;
+                }
+            }
+
+            Varint.write(dst, (codedBits + 7) >>> 3);
+            encodeBlock(array, buffer, pos, end, dst);
+        }
+        Varint.write(dst, 0); // end of stream
+        return dst.position() - start;
+    }
+
+    // Builds the codes of a context from counts, stores them in codes and
+    // writes them to dst.  Returns the number of encoded bits of the
+    // bytes which follow the context, or -1 if the context does not occur.
+    private long writeCodes(int context, ByteBuffer dst) {
+        int symbols = 0;
+        int last = 0;
+        for (int b = 0; b < 256; b++) {
+            int count = counts[context << 8 | b];
+            freqs[b ^ 0x80] = count;
+            if (count != 0) {
+                symbols++;
+                last = b;
+            }
+        }
+        if (symbols == 0)
+            return -1;
+        if (symbols == 1) {
+            dst.put(SINGLE_SYMBOL);
+            dst.put((byte)last);
+            codes[context << 8 | last] = 0;
+            return 0;
+        }
+
+        builder.build(freqs, MAX_CODE_LENGTH, lengths);
+        builder.codes(lengths, codeBits);
+        HuffmanDict.writeLengthTable(lengths, dst);
+        long bits = 0;
+        for (int b = 0; b < 256; b++) {
+            int i = b ^ 0x80;
+            codes[context << 8 | b] = codeBits[i] | (lengths[i] << 16);
+            bits += (long)freqs[i] * lengths[i];
+        }
+        return bits;
+    }
+
+    // Writes the codes of the bytes from..to into dst, in the bit order
+    // of BitWriter, the last byte is padded with 0 bits
+    private void encodeBlock(byte[] array, ByteBuffer buffer, int from, int to,
+            ByteBuffer dst) {
+        boolean swap = (dst.order() == ByteOrder.BIG_ENDIAN);
+        long bitBuf = 0;
+        int bitCount = 0;
+        int prev = 0;
+        for (int i = from; i < to; i++) {
+            int b = ((array != null) ? array[i] : buffer.get(i)) & 0xFF;
+            int code = codes[prev << 8 | b];
+            prev = b;
+            bitBuf |= (long)(code & 0xFFFF) << bitCount;
+            bitCount += code >>> 16;
+            if (bitCount >= 32) {
+                int bits = (int)bitBuf;
+                dst.putInt(swap ? Integer.reverseBytes(bits) : bits);
+                bitBuf >>>= 32;
+                bitCount -= 32;
+            }
+        }
+        while (bitCount > 0) {
+            dst.put((byte)bitBuf);
+            bitBuf >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    /**
+     * Decompresses the context stream starting at the position of src
+     * into dst, starting at the position of dst.  The position of src is
+     * moved after the end of the stream and the position of dst after the
+     * decompressed data.
+     *
+     * @param src buffer containing a context stream
+     * @param dst the buffer where the decompressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small
+     * @throws IllegalArgumentException if src does not contain a valid
+     * context stream
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) {
+        try {
+            return decompressStream(src, dst);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Context stream too short");
+        }
+    }
+
+    private int decompressStream(ByteBuffer src, ByteBuffer dst) {
+        byte b = src.get();
+        if (b != CONTEXT_STREAM)
+            throw new IllegalArgumentException("Not a context stream: " + (char)b);
+        long originalLength = Varint.read(src);
+        if (originalLength > dst.remaining())
+            throw new BufferOverflowException();
+
+        int start = dst.position();
+        while (true) {
+            long rawLength = Varint.read(src);
+            if (rawLength == 0)
+                break; // end of stream
+            if (rawLength > dst.remaining())
+                throw new BufferOverflowException();
+            readTables(src);
+            long codedLength = Varint.read(src);
+            if (codedLength > src.remaining())
+                throw new BufferUnderflowException();
+            decodeBlock(src, (int)codedLength, dst, (int)rawLength);
+        }
+        if (dst.position() - start != originalLength)
+            throw new IllegalArgumentException("Context stream length does not match its blocks");
+        return dst.position() - start;
+    }
+
+    // Reads the context bitmap and the codes of the contexts which occur
+    // and builds the decoding tables
+    private void readTables(ByteBuffer src) {
+        int bitmapPos = src.position();
+        src.position(bitmapPos + CONTEXT_BITMAP_SIZE);
+        table[0] = NO_CODE;
+        int size = 1;
+        for (int context = 0; context < 256; context++) {
+            tableOffset[context] = 0;
+            tableMask[context] = 0;
+            if ((src.get(bitmapPos + context / 8) & (1 << (context % 8))) == 0)
+                continue;
+
+            if (src.get(src.position()) == SINGLE_SYMBOL) {
+                src.get();
+                ensureCapacity(size + 1);
+                tableOffset[context] = size;
+                table[size++] = (short)(src.get() & 0xFF);
+                continue;
+            }
+            HuffmanDict.readLengthTable(src, lengths);
+            int maxLength = 0;
+            for (int len : lengths)
+                maxLength = Math.max(maxLength, len);
+            if (maxLength > MAX_CODE_LENGTH)
+                throw new IllegalArgumentException("Code too long: " + maxLength);
+            builder.codes(lengths, codeBits);
+
+            // Each code fills the entries of all the bits which start with it
+            ensureCapacity(size + (1 << maxLength));
+            tableOffset[context] = size;
+            tableMask[context] = (1 << maxLength) - 1;
+            for (int i = 0; i < 256; i++) {
+                int len = lengths[i];
+                if (len == 0)
+                    continue;
+                short entry = (short)((i ^ 0x80) | (len << 8));
+                for (int k = codeBits[i]; k < (1 << maxLength); k += 1 << len)
+                    table[size + k] = entry;
+            }
+            size += 1 << maxLength;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > table.length)
+            table = Arrays.copyOf(table, Math.max(size, table.length * 2));
+    }
+
+    // Decodes the codedLength bytes at the position of src into count
+    // bytes at the position of dst, and moves both positions
+    private void decodeBlock(ByteBuffer src, int codedLength, ByteBuffer dst, int count) {
+        byte[] in;
+        int inPos;
+        if (src.hasArray()) {
+            in = src.array();
+            inPos = src.arrayOffset() + src.position();
+        }
+        else {
+            in = scratch(codedLength + count);
+            src.get(in, 0, codedLength);
+            src.position(src.position() - codedLength);
+            inPos = 0;
+        }
+        byte[] out;
+        int outPos;
+        if (dst.hasArray()) {
+            out = dst.array();
+            outPos = dst.arrayOffset() + dst.position();
+        }
+        else {
+            out = scratch(codedLength + count);
+            outPos = codedLength;
+        }
+
+        decode(in, inPos, inPos + codedLength, out, outPos, count);
+        src.position(src.position() + codedLength);
+        if (dst.hasArray())
+            dst.position(dst.position() + count);
+        else
+            dst.put(out, outPos, count);
+    }
+
+    private byte[] scratch(int size) {
+        if (scratch.length < size)
+            scratch = new byte[Math.max(size, blockSize)];
+        return scratch;
+    }
+
+    // Decodes count bytes from in[inPos..inEnd) into out, starting at outPos
+    private void decode(byte[] in, int inPos, int inEnd, byte[] out, int outPos, int count) {
+        short table[] = this.table;
+        int tableOffset[] = this.tableOffset;
+        int tableMask[] = this.tableMask;
+        int outEnd = outPos + count;
+        long bitBuf = 0;
+        int bitCount = 0;
+        int prev = 0;
+        while (outPos < outEnd) {
+            // Add whole bytes until the buffer holds at least 56 bits,
+            // enough for the codes of five bytes
+            while (bitCount <= 56 && inPos < inEnd) {
+                bitBuf |= (long)(in[inPos++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+            int n = Math.min(outEnd - outPos, 5);
+            for (int k = 0; k < n; k++) {
+                int entry = table[tableOffset[prev] + ((int)bitBuf & tableMask[prev])];
+                if (entry < 0)
+                    throw new IllegalArgumentException("No code for context " + prev);
+                int len = entry >>> 8;
+                if (len > bitCount)
+                    throw new IllegalArgumentException("Encoded data too short");
+                bitBuf >>>= len;
+                bitCount -= len;
+                prev = entry & 0xFF;
+                out[outPos++] = (byte)prev;
+            }
+        }
+    }
+}
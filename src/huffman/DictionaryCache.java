@@ -0,0 +1,73 @@
+package huffman;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Cache of static dictionaries keyed by their ID.  Each dictionary is
+ * read once, the first time its ID is needed, and its decoding tables
+ * are then shared by all the threads using the cache.
+ */
+public class DictionaryCache {
+    private final ConcurrentHashMap<Integer, StaticDictionary> dictionaries =
+            new ConcurrentHashMap<>();
+    private final IntFunction<byte[]> loader;
+
+    /**
+     * Creates a cache which only contains the dictionaries added to it.
+     */
+    public DictionaryCache() {
+        this(null);
+    }
+
+    /**
+     * Creates a cache which loads missing dictionaries with the given
+     * function.
+     *
+     * @param loader function returning a dictionary written by
+     * StaticDictionary.toBytes() for an ID, or null if there is no
+     * dictionary with the ID
+     */
+    public DictionaryCache(IntFunction<byte[]> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Adds a dictionary to the cache, replacing the dictionary with the
+     * same ID, if any.
+     *
+     * @param dictionary the dictionary
+     */
+    public void add(StaticDictionary dictionary) {
+        dictionaries.put(dictionary.getId(), dictionary);
+    }
+
+    /**
+     * Returns the dictionary with the given ID, loading it if it is not
+     * in the cache yet.  A dictionary is loaded only once, even when
+     * several threads ask for it at the same time.
+     *
+     * @param id the dictionary ID
+     * @return the dictionary
+     * @throws IllegalArgumentException if there is no dictionary with the
+     * ID, or the loaded dictionary is not valid
+     */
+    public StaticDictionary get(int id) {
+        StaticDictionary dictionary = dictionaries.get(id);
+        if (dictionary == null && loader != null)
+            dictionary = dictionaries.computeIfAbsent(id, this::load);
+        if (dictionary == null)
+            throw new IllegalArgumentException("Unknown dictionary: " + id);
+        return dictionary;
+    }
+
+    private StaticDictionary load(int id) {
+        byte[] bytes = loader.apply(id);
+        if (bytes == null)
+            return null;
+        StaticDictionary dictionary = StaticDictionary.read(ByteBuffer.wrap(bytes));
+        if (dictionary.getId() != id)
+            throw new IllegalArgumentException("Dictionary " + id + " has ID " + dictionary.getId());
+        return dictionary;
+    }
+}
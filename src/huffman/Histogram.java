@@ -0,0 +1,242 @@
+package huffman;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the byte frequencies of large inputs in parallel and returns
+ * them in a HuffmanDict ready for makeTree().
+ * 
+ * The input is split into chunks of CHUNK_SIZE bytes which are counted
+ * by the tasks of a ForkJoinPool, each in its own array of counts, and
+ * the counts are added up at the end.
+ */
+public class Histogram {
+    // Number of bytes counted by one task
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Size of the file regions mapped into memory at once
+    static final long MAP_SIZE = 1024 * 1024 * 1024;
+
+    // Size of the scratch array used by count(), four arrays of counters
+    static final int SCRATCH_SIZE = 4 * 256;
+
+    /**
+     * Largest total of the frequencies returned by normalize(), not
+     * counting the frequencies raised to 1.  The frequencies of a tree
+     * built from them, and their sums, fit in an int.
+     */
+    public static final int NORMALIZED_TOTAL = 1 << 30;
+
+    /**
+     * Counts the bytes in the given range of the array.
+     * 
+     * @param data the data
+     * @param offset position of the first byte to count
+     * @param length number of bytes to count
+     * @param pool the pool where the bytes are counted
+     * @return a dictionary with the byte frequencies
+     */
+    public static HuffmanDict build(byte[] data, int offset, int length, ForkJoinPool pool) {
+        return build(ByteBuffer.wrap(data, offset, length), pool);
+    }
+
+    /**
+     * Counts the bytes between the position and the limit of the buffer.
+     * The buffer position is not changed.
+     * 
+     * @param data the data
+     * @param pool the pool where the bytes are counted
+     * @return a dictionary with the byte frequencies
+     */
+    public static HuffmanDict build(ByteBuffer data, ForkJoinPool pool) {
+        HuffmanDict dict = new HuffmanDict();
+        dict.addCounts(pool.invoke(new CountTask(data, data.position(), data.limit())));
+        return dict;
+    }
+
+    /**
+     * Counts the bytes of a file by mapping it into memory, starting
+     * from the beginning of the file.  The channel position is not changed.
+     * 
+     * @param channel the file channel, open for reading
+     * @param pool the pool where the bytes are counted
+     * @return a dictionary with the byte frequencies
+     * @throws IOException if an error occurs while mapping the file
+     */
+    public static HuffmanDict build(FileChannel channel, ForkJoinPool pool) throws IOException {
+        HuffmanDict dict = new HuffmanDict();
+        long size = channel.size();
+        for (long pos = 0; pos < size; pos += MAP_SIZE) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, 
+                    pos, Math.min(MAP_SIZE, size - pos));
+            dict.addCounts(pool.invoke(new CountTask(region, 0, region.limit())));
+        }
+        return dict;
+    }
+
+    /**
+     * Adds the counts of the bytes in data[offset..offset+length) to counts.
+     * The bytes are counted in four arrays so consecutive equal bytes do 
+     * not increment the same counter one after the other.
+     * 
+     * @param data the data
+     * @param offset position of the first byte to count
+     * @param length number of bytes to count
+     * @param counts counts indexed by the unsigned byte value
+     */
+    static void count(byte[] data, int offset, int length, int counts[]) {
+        count(data, offset, length, counts, new int[SCRATCH_SIZE]);
+    }
+
+    /**
+     * Adds the counts of the bytes in data[offset..offset+length) to counts,
+     * using the given scratch array instead of allocating the four arrays.
+     * 
+     * @param data the data
+     * @param offset position of the first byte to count
+     * @param length number of bytes to count
+     * @param counts counts indexed by the unsigned byte value
+     * @param scratch array of SCRATCH_SIZE counters
+     */
+    static void count(byte[] data, int offset, int length, int counts[], int scratch[]) {
+        long time = Metrics.start();
+        Arrays.fill(scratch, 0);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 3 < end; i += 4) {
+            scratch[data[i] & 0xFF]++;
+            scratch[256 + (data[i + 1] & 0xFF)]++;
+            scratch[512 + (data[i + 2] & 0xFF)]++;
+            scratch[768 + (data[i + 3] & 0xFF)]++;
+        }
+        for (; i < end; i++)
+            scratch[data[i] & 0xFF]++;
+        addScratch(scratch, counts);
+        Metrics.phase(Metrics.Phase.HISTOGRAM, time, length);
+    }
+
+    /**
+     * Adds the counts of the bytes in data between from and to to counts.
+     * Buffers without an accessible array are read 8 bytes at a time.
+     * 
+     * @param data the data
+     * @param from position of the first byte to count
+     * @param to position after the last byte to count
+     * @param counts counts indexed by the unsigned byte value
+     */
+    static void count(ByteBuffer data, int from, int to, int counts[]) {
+        count(data, from, to, counts, new int[SCRATCH_SIZE]);
+    }
+
+    /**
+     * Adds the counts of the bytes in data between from and to to counts,
+     * using the given scratch array instead of allocating the four arrays.
+     * 
+     * @param data the data
+     * @param from position of the first byte to count
+     * @param to position after the last byte to count
+     * @param counts counts indexed by the unsigned byte value
+     * @param scratch array of SCRATCH_SIZE counters
+     */
+    static void count(ByteBuffer data, int from, int to, int counts[], int scratch[]) {
+        if (data.hasArray()) {
+            count(data.array(), data.arrayOffset() + from, to - from, counts, scratch);
+            return;
+        }
+
+        long time = Metrics.start();
+        Arrays.fill(scratch, 0);
+        int i = from;
+        for (; i + 7 < to; i += 8) {
+            long w = data.getLong(i);
+            scratch[(int)w & 0xFF]++;
+            scratch[256 + ((int)(w >>> 8) & 0xFF)]++;
+            scratch[512 + ((int)(w >>> 16) & 0xFF)]++;
+            scratch[768 + ((int)(w >>> 24) & 0xFF)]++;
+            scratch[(int)(w >>> 32) & 0xFF]++;
+            scratch[256 + ((int)(w >>> 40) & 0xFF)]++;
+            scratch[512 + ((int)(w >>> 48) & 0xFF)]++;
+            scratch[768 + ((int)(w >>> 56) & 0xFF)]++;
+        }
+        for (; i < to; i++)
+            scratch[data.get(i) & 0xFF]++;
+        addScratch(scratch, counts);
+        Metrics.phase(Metrics.Phase.HISTOGRAM, time, to - from);
+    }
+
+    /**
+     * Stores the counts in freqs, scaled down if their total is larger
+     * than NORMALIZED_TOTAL.  Each count is multiplied by the same factor
+     * and rounded down, and non-zero counts stay at least 1, so every byte
+     * which occurs still gets a code.  Counts with a smaller total are 
+     * stored unchanged.
+     * 
+     * @param counts byte counts, which can add up to more than 2^31
+     * @param freqs array where the frequencies are stored, with the same
+     * index as counts
+     */
+    public static void normalize(long counts[], int freqs[]) {
+        long total = 0;
+        for (long count : counts) {
+            if (count < 0)
+                throw new IllegalArgumentException("Invalid count: " + count);
+            total += count;
+            if (total < 0)
+                throw new IllegalArgumentException("Counts too large");
+        }
+        double scale = (total > NORMALIZED_TOTAL) ? (double)NORMALIZED_TOTAL / total : 1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0)
+                freqs[i] = 0;
+            else
+                freqs[i] = (int)Math.max(1, (long)(counts[i] * scale));
+        }
+    }
+
+    // Adds the four arrays of counters in scratch to counts
+    private static void addScratch(int scratch[], int counts[]) {
+        for (int b = 0; b < 256; b++)
+            counts[b] += scratch[b] + scratch[256 + b] + scratch[512 + b] + scratch[768 + b];
+    }
+
+    /**
+     * Counts the bytes of a buffer range, splitting it in halves until
+     * the range is at most CHUNK_SIZE bytes.
+     */
+    private static class CountTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer data;
+        private final int from;
+        private final int to;
+
+        CountTask(ByteBuffer data, int from, int to) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= CHUNK_SIZE) {
+                int counts[] = new int[256];
+                count(data, from, to, counts);
+                return counts;
+            }
+
+            int middle = from + (to - from) / 2;
+            CountTask left = new CountTask(data, from, middle);
+            left.fork();
+            int counts[] = new CountTask(data, middle, to).compute();
+            int leftCounts[] = left.join();
+            for (int b = 0; b < 256; b++)
+                counts[b] += leftCounts[b];
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package huffman;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses data in memory, for use as a library.  The
+ * compressed data is a block stream in the format written by BlockEncoder,
+ * with the original length in the stream header, so it can also be decoded
+ * by BlockDecoder and MainDecode.
+ *
+ * The caller supplies the output buffers, and the counts, code tables and
+ * decoding tables are kept in the codec and reused by every call, so once
+ * the tables have grown to their largest size compress() and decompress()
+ * do not allocate memory.  A codec must not be used by several threads at
+ * the same time: each thread can use its own codec, returned by
+ * HuffmanCodec.current().
+ */
+public class HuffmanCodec {
+    private static final ThreadLocal<HuffmanCodec> CODECS =
+            ThreadLocal.withInitial(HuffmanCodec::new);
+
+    // Bytes written by compress() in addition to the encoded data
+    private static final int STREAM_OVERHEAD = 2 + Varint.MAX_LENGTH + 1;
+    private static final int BLOCK_OVERHEAD =
+            5 + HuffmanDict.MAX_LENGTH_TABLE_SIZE + 5 + TableDecoder.JUMP_TABLE_SIZE;
+
+    private final int blockSize;
+    private final boolean interleaved;
+    private final int counts[] = new int[256];     // indexed by the unsigned byte value
+    private final int partCounts[][] = new int[TableDecoder.STREAMS][256];
+    private final int freqs[] = new int[256];      // indexed by byte + 128
+    private final int lengths[] = new int[256];    // indexed by byte + 128
+    private final int codeBits[] = new int[256];   // indexed by byte + 128
+    private final int countScratch[] = new int[Histogram.SCRATCH_SIZE];
+    private final CodeLengthBuilder builder = new CodeLengthBuilder();
+    private final TableDecoder decoder = new TableDecoder();
+    private byte scratch[];     // decoded block, when dst has no array
+
+    /**
+     * Creates a codec which compresses blocks of
+     * BlockEncoder.DEFAULT_BLOCK_SIZE bytes.
+     */
+    public HuffmanCodec() {
+        this(BlockEncoder.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a codec which compresses blocks of the given size.  Smaller
+     * blocks adapt better to changes in the data, larger blocks store
+     * fewer dictionaries.
+     * @param blockSize the number of input bytes in each block
+     */
+    public HuffmanCodec(int blockSize) {
+        this(blockSize, false);
+    }
+
+    /**
+     * Creates a codec which compresses blocks of the given size, encoding
+     * the data of each block in four parts if interleaved is true, which
+     * are decoded faster, as described in BlockEncoder.
+     * @param blockSize the number of input bytes in each block
+     * @param interleaved true to encode each block in four parts
+     */
+    public HuffmanCodec(int blockSize, boolean interleaved) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.blockSize = blockSize;
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Returns the codec of the calling thread, created with the default
+     * block size the first time it is needed.
+     * @return the codec of the calling thread
+     */
+    public static HuffmanCodec current() {
+        return CODECS.get();
+    }
+
+    /**
+     * Returns the largest number of bytes compress() can write for the
+     * given number of input bytes.  A Huffman code never takes more than
+     * 8 bits per byte, so only the headers are added to the input length.
+     *
+     * @param length the number of input bytes
+     * @return the size of a buffer large enough for the compressed data
+     * @throws IllegalArgumentException if the compressed data could be
+     * larger than an array
+     */
+    public int maxCompressedLength(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length: " + length);
+        long blocks = (length + (long)blockSize - 1) / blockSize;
+        long max = length + blocks * BLOCK_OVERHEAD + STREAM_OVERHEAD;
+        if (max > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Input too large: " + length);
+        return (int)max;
+    }
+
+    /**
+     * Compresses the bytes between the position and the limit of src into
+     * dst, starting at the position of dst.  The position of src is moved
+     * to its limit and the position of dst after the compressed data.
+     *
+     * @param src the data to compress
+     * @param dst the buffer where the compressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small, then the
+     * positions of the buffers are not specified
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        int from = src.position();
+        int to = src.limit();
+        int written;
+        if (src.hasArray())
+            written = compress(src.array(), null, src.arrayOffset() + from,
+                    src.arrayOffset() + to, dst);
+        else
+            written = compress(null, src, from, to, dst);
+        src.position(to);
+        return written;
+    }
+
+    /**
+     * Compresses length bytes of src, starting at offset, into dst,
+     * starting at the position of dst.  The position of dst is moved after
+     * the compressed data.
+     *
+     * @param src the data to compress
+     * @param offset position of the first byte to compress
+     * @param length number of bytes to compress
+     * @param dst the buffer where the compressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small, then the
+     * position of dst is not specified
+     */
+    public int compress(byte[] src, int offset, int length, ByteBuffer dst) {
+        if (offset < 0 || length < 0 || offset + length > src.length)
+            throw new IndexOutOfBoundsException();
+        return compress(src, null, offset, offset + length, dst);
+    }
+
+    // Compresses the bytes from..to of the array, or of the buffer if the
+    // array is null
+    private int compress(byte[] array, ByteBuffer buffer, int from, int to,
+            ByteBuffer dst) {
+        int start = dst.position();
+        dst.put(BlockEncoder.BLOCK_STREAM);
+        dst.put((byte)(BlockEncoder.ORIGINAL_LENGTH 
+                | (interleaved ? BlockEncoder.INTERLEAVED : 0)));
+        Varint.write(dst, to - from);
+
+        for (int pos = from; pos < to; pos += blockSize) {
+            int end = Math.min(to, pos + blockSize);
+            Arrays.fill(counts, 0);
+            if (interleaved)
+                countParts(array, buffer, pos, end);
+            else
+                count(array, buffer, pos, end, counts);
+            Varint.write(dst, end - pos);
+
+            int blockStart = dst.position();
+            int single = singleByte();
+            if (single >= 0) {
+                // A run of a single byte, stored without encoded data
+                dst.put(HuffmanDict.SINGLE_HEADER);
+                dst.put((byte)single);
+                Varint.write(dst, 0);
+                Metrics.block(end - pos, dst.position() - blockStart, 0, counts);
+                continue;
+            }
+            long time = Metrics.start();
+            long codedBits = buildCodes();
+            time = Metrics.phase(Metrics.Phase.TREE, time, 0);
+            int tableStart = dst.position();
+            HuffmanDict.writeLengthTable(lengths, dst);
+            Metrics.phase(Metrics.Phase.HEADER, time, dst.position() - blockStart);
+            long codedLength = interleaved ? interleavedLength() : (codedBits + 7) >>> 3;
+            if (dst.position() - tableStart + codedLength >= end - pos) {
+                // Encoding would not make the block smaller
+                dst.position(tableStart);
+                store(array, buffer, pos, end, dst);
+                Metrics.block(end - pos, dst.position() - blockStart, 8L * (end - pos), counts);
+                continue;
+            }
+            if (interleaved) {
+                encodeInterleaved(array, buffer, pos, end, dst);
+            }
+            else {
+                Varint.write(dst, codedLength);
+                encodeBlock(array, buffer, pos, end, codeBits, lengths, dst);
+            }
+            Metrics.block(end - pos, dst.position() - blockStart, codedBits, counts);
+        }
+        Varint.write(dst, 0); // end of stream
+        return dst.position() - start;
+    }
+
+    // Counts the bytes of the block from..to in four parts, to know the
+    // encoded size of each part, and adds them up in counts
+    private void countParts(byte[] array, ByteBuffer buffer, int from, int to) {
+        int part = TableDecoder.interleavedPart(to - from);
+        for (int k = 0; k < TableDecoder.STREAMS; k++) {
+            Arrays.fill(partCounts[k], 0);
+            count(array, buffer, Math.min(to, from + k * part), 
+                    Math.min(to, from + (k + 1) * part), partCounts[k]);
+            for (int b = 0; b < 256; b++)
+                counts[b] += partCounts[k][b];
+        }
+    }
+
+    // Writes the encoded length, the jump table and the four encoded parts
+    // of the block from..to, counted by countParts()
+    private void encodeInterleaved(byte[] array, ByteBuffer buffer, int from, int to,
+            ByteBuffer dst) {
+        int part = TableDecoder.interleavedPart(to - from);
+        Varint.write(dst, interleavedLength());
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        for (int k = 0; k < TableDecoder.STREAMS - 1; k++)
+            dst.putInt((int)partLength(partCounts[k]));
+        dst.order(order);
+        for (int k = 0; k < TableDecoder.STREAMS; k++)
+            encodeBlock(array, buffer, Math.min(to, from + k * part),
+                    Math.min(to, from + (k + 1) * part), codeBits, lengths, dst);
+    }
+
+    // Returns the number of bytes of the jump table and the parts of an
+    // interleaved block counted by countParts()
+    private long interleavedLength() {
+        long length = TableDecoder.JUMP_TABLE_SIZE;
+        for (int k = 0; k < TableDecoder.STREAMS; k++)
+            length += partLength(partCounts[k]);
+        return length;
+    }
+
+    // Writes the block from..to of the array, or of the buffer if the
+    // array is null, as a stored block
+    private static void store(byte[] array, ByteBuffer buffer, int from, int to, ByteBuffer dst) {
+        dst.put(HuffmanDict.STORED_HEADER);
+        Varint.write(dst, to - from);
+        if (array != null) {
+            dst.put(array, from, to - from);
+        }
+        else {
+            ByteBuffer data = buffer.duplicate();
+            data.limit(to).position(from);
+            dst.put(data);
+        }
+    }
+
+    // Returns the unsigned byte if counts has a single byte, or -1
+    private int singleByte() {
+        int single = -1;
+        for (int b = 0; b < 256; b++) {
+            if (counts[b] != 0) {
+                if (single >= 0)
+                    return -1;
+                single = b;
+            }
+        }
+        return single;
+    }
+
+    // Returns the number of bytes of the encoded part with the given counts
+    private long partLength(int part[]) {
+        long bits = 0;
+        for (int b = 0; b < 256; b++)
+            bits += (long)part[b] * lengths[b ^ 0x80];
+        return (bits + 7) >>> 3;
+    }
+
+    // Adds the counts of the bytes from..to of the array, or of the buffer
+    // if the array is null
+    private void count(byte[] array, ByteBuffer buffer, int from, int to, int counts[]) {
+        if (array != null)
+            Histogram.count(array, from, to - from, counts, countScratch);
+        else
+            Histogram.count(buffer, from, to, counts, countScratch);
+    }
+
+    // Builds the canonical codes for counts, with at least two bytes, and
+    // returns the number of encoded bits
+    private long buildCodes() {
+        for (int b = 0; b < 256; b++)
+            freqs[b ^ 0x80] = counts[b];
+        builder.build(freqs, BitWriter.MAX_CODE_LENGTH, lengths);
+        builder.codes(lengths, codeBits);
+
+        long bits = 0;
+        for (int i = 0; i < 256; i++) {
+            if (freqs[i] != 0 && lengths[i] == 0)
+                throw new IllegalArgumentException("No code found for byte " + (byte)(i - 128));
+            bits += (long)freqs[i] * lengths[i];
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the codes of the bytes from..to of the array, or of the buffer
+     * if the array is null, into dst in the bit order of BitWriter.  The 
+     * last byte is padded with 0 bits.
+     *
+     * @param codeBits the codes as written by BitWriter, indexed by byte + 128
+     * @param lengths the code lengths, indexed by byte + 128
+     * @throws BufferOverflowException if dst is too small
+     */
+    static void encodeBlock(byte[] array, ByteBuffer buffer, int from, int to,
+            int codeBits[], int lengths[], ByteBuffer dst) {
+        long time = Metrics.start();
+        boolean swap = (dst.order() == ByteOrder.BIG_ENDIAN);
+        long bitBuf = 0;
+        int bitCount = 0;
+        for (int i = from; i < to; i++) {
+            int index = ((array != null) ? array[i] : buffer.get(i)) + 128;
+            bitBuf |= (codeBits[index] & 0xFFFFFFFFL) << bitCount;
+            bitCount += lengths[index];
+            if (bitCount >= 32) {
+                int bits = (int)bitBuf;
+                dst.putInt(swap ? Integer.reverseBytes(bits) : bits);
+                bitBuf >>>= 32;
+                bitCount -= 32;
+            }
+        }
+        while (bitCount > 0) {
+            dst.put((byte)bitBuf);
+            bitBuf >>>= 8;
+            bitCount -= 8;
+        }
+        Metrics.phase(Metrics.Phase.ENCODE, time, to - from);
+    }
+
+    /**
+     * Returns the number of bytes decompress() stores for the block stream
+     * starting at the position of src, read from the stream header.  The
+     * position of src is not changed.
+     *
+     * @param src buffer containing a block stream
+     * @return the number of decompressed bytes, or -1 if the stream does
+     * not store it
+     * @throws IllegalArgumentException if src does not start with a valid
+     * stream header
+     */
+    public static long decompressedLength(ByteBuffer src) {
+        ByteBuffer header = src.duplicate();
+        try {
+            byte b = header.get();
+            if (b != BlockEncoder.BLOCK_STREAM)
+                throw new IllegalArgumentException("Not a block stream: " + (char)b);
+            int flags = header.get() & 0xFF;
+            return ((flags & BlockEncoder.ORIGINAL_LENGTH) != 0) ? Varint.read(header) : -1;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Block stream too short");
+        }
+    }
+
+    /**
+     * Decompresses the block stream starting at the position of src into
+     * dst, starting at the position of dst.  The position of src is moved
+     * after the end of the stream and the position of dst after the
+     * decompressed data.
+     *
+     * @param src buffer containing a block stream
+     * @param dst the buffer where the decompressed data is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small
+     * @throws IllegalArgumentException if src does not contain a valid
+     * block stream
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) {
+        try {
+            return decompressStream(src, dst);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Block stream too short");
+        }
+    }
+
+    private int decompressStream(ByteBuffer src, ByteBuffer dst) {
+        byte b = src.get();
+        if (b != BlockEncoder.BLOCK_STREAM)
+            throw new IllegalArgumentException("Not a block stream: " + (char)b);
+        int flags = src.get() & 0xFF;
+        long originalLength = -1;
+        if ((flags & BlockEncoder.ORIGINAL_LENGTH) != 0) {
+            originalLength = Varint.read(src);
+            if (originalLength > dst.remaining())
+                throw new BufferOverflowException();
+        }
+        TableDecoder shared = null;
+        if ((flags & BlockEncoder.SHARED_DICTIONARY) != 0)
+            shared = readDictionary(src);
+        boolean interleaved = (flags & BlockEncoder.INTERLEAVED) != 0;
+
+        int start = dst.position();
+        while (true) {
+            long rawLength = Varint.read(src);
+            if (rawLength == 0)
+                break; // end of stream
+            if (rawLength > dst.remaining())
+                throw new BufferOverflowException();
+            TableDecoder tables = (shared != null) ? shared : readDictionary(src);
+            long codedLength = Varint.read(src);
+            if (codedLength > src.remaining())
+                throw new BufferUnderflowException();
+            decodeBlock(tables, interleaved, src, (int)codedLength, dst, (int)rawLength);
+            src.position(src.position() + (int)codedLength);
+        }
+        if (originalLength >= 0 && dst.position() - start != originalLength)
+            throw new IllegalArgumentException("Blocks do not match the stream: " + originalLength);
+        return dst.position() - start;
+    }
+
+    // Reads a dictionary from src and returns its decoding tables
+    private TableDecoder readDictionary(ByteBuffer src) {
+        if (src.get(src.position()) == HuffmanDict.STORED_HEADER) {
+            src.get();
+            decoder.buildStored();
+            return decoder;
+        }
+        if (src.get(src.position()) == HuffmanDict.SINGLE_HEADER) {
+            src.get();
+            decoder.buildSingle(src.get());
+            return decoder;
+        }
+        if (HuffmanDict.isLengthTable(src.get(src.position()))) {
+            HuffmanDict.readLengthTable(src, lengths);
+            decoder.build(lengths);
+            return decoder;
+        }
+
+        // A dictionary stored as a tree, as written by older versions
+        try {
+            return HuffmanDict.read(new DataInputStream(
+                    new ByteBufferInputStream(src))).getTableDecoder();
+        }
+        catch (IOException e) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    // Decodes the codedLength bytes at the position of src into count
+    // bytes at the position of dst
+    private void decodeBlock(TableDecoder tables, boolean interleaved, ByteBuffer src,
+            int codedLength, ByteBuffer dst, int count) {
+        long time = Metrics.start();
+        byte[] out;
+        int outPos;
+        if (dst.hasArray()) {
+            out = dst.array();
+            outPos = dst.arrayOffset() + dst.position();
+        }
+        else {
+            if (scratch == null || scratch.length < count)
+                scratch = new byte[Math.max(count, blockSize)];
+            out = scratch;
+            outPos = 0;
+        }
+
+        if (src.hasArray() && interleaved) {
+            tables.decodeInterleaved(src.array(), src.arrayOffset() + src.position(), 
+                    codedLength, out, outPos, count);
+        }
+        else if (src.hasArray()) {
+            tables.decode(src.array(), src.arrayOffset() + src.position(), codedLength,
+                    out, outPos, count);
+        }
+        else {
+            // Read the encoded data in the byte order of the decoder
+            // without duplicating the buffer
+            int limit = src.limit();
+            ByteOrder order = src.order();
+            src.limit(src.position() + codedLength);
+            src.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                if (interleaved)
+                    tables.decodeInterleaved(src, out, outPos, count);
+                else
+                    tables.decode(src, out, outPos, count);
+            }
+            finally {
+                src.limit(limit);
+                src.order(order);
+            }
+        }
+
+        if (out == scratch)
+            dst.put(scratch, 0, count);
+        else
+            dst.position(dst.position() + count);
+        Metrics.phase(Metrics.Phase.DECODE, time, count);
+    }
+}
@@ -3,14 +3,24 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Huffman dictionary.
  * 
  * Call add() repeatedly to build the character histogram, then
- * call makeTree() to build the Huffman tree.
- * Use encode() to encode each byte and use HuffmanDict.Decoder to decode
- * an input stream into bytes.
+ * call makeTree() to build the Huffman tree, or makeCanonicalTree() to
+ * build a tree with canonical codes which is stored as a table of code
+ * lengths.  Both methods can limit the length of the longest code.
+ * The counts are 64 bit numbers, so the histogram of any amount of data
+ * can be built by adding it in chunks; the trees are built from counts
+ * normalized by Histogram.normalize().
+ * Use encode() to encode each byte and use getTableDecoder() to decode
+ * an input stream into bytes.  HuffmanDict.Decoder decodes one bit at a
+ * time and is kept for debugging.
  */
 public class HuffmanDict {
     /**
@@ -18,7 +28,7 @@ public class HuffmanDict {
      */
     static class Node implements Comparable<Node> {
         public byte c;      // character (ASCII)
-        public int f;       // frequency
+        public int f;       // frequency, normalized
         public Node left;   // reference to left child
         public Node right;  // reference to right child
         
@@ -54,11 +64,21 @@ public class HuffmanDict {
             return root;
         }
         
+        /**
+         * Returns the length of the longest code in the subtree of this node.
+         */
+        public int depth() {
+            if (isLeaf())
+                return 0;
+            return 1 + Math.max(left.depth(), right.depth());
+        }
+
         /**
          * Returns true if the node is leaf (contains a character) otherwise false.
+         * A leaf has no children, its character can be any byte, also 0.
          */
         public boolean isLeaf() {
-            return c != 0;
+            return left == null && right == null;
         }
     }
 
@@ -112,18 +132,64 @@ public class HuffmanDict {
         return new Decoder();
     }
 
-    private int freqs[];
+    /**
+     * Returns the table driven decoder for this dictionary.  The decoding
+     * tables are built the first time this method is called.
+     * @return the table decoder
+     */
+    public synchronized TableDecoder getTableDecoder() {
+        if (tableDecoder == null && stored) {
+            tableDecoder = new TableDecoder();
+            tableDecoder.buildStored();
+        }
+        if (tableDecoder == null)
+            tableDecoder = new TableDecoder(tree);
+        return tableDecoder;
+    }
+
+    // First byte of a dictionary stored as a table of code lengths
+    static final byte CANONICAL_HEADER = 'C';
+
+    // First byte of a dictionary stored as a table of 256 code lengths
+    // without runs, used when the runs would make the table larger
+    static final byte FULL_LENGTHS_HEADER = 'L';
+
+    // First byte of a dictionary with a single byte, which is followed by
+    // the byte.  The byte has a code of length 0, so a block of that byte
+    // is stored as a run: its length and the dictionary, without any bits.
+    static final byte SINGLE_HEADER = 'R';
+
+    // The whole dictionary of a stored block, whose data is the input
+    // bytes themselves because encoding would not make the block smaller
+    static final byte STORED_HEADER = 'N';
+
+    // Largest table of code lengths: the header and 256 lengths, since
+    // runs are only written if they make the table smaller
+    static final int MAX_LENGTH_TABLE_SIZE = 1 + 256;
+
+    private long counts[];      // byte counts, indexed by byte + 128
     private Node tree;
     private String codes[];
+    private int codeBits[];     // codes of at most BitWriter.MAX_CODE_LENGTH bits
+    private int codeLengths[];  // length of the codes in codeBits, or 0
+    private boolean canonical;  // codes are assigned from the code lengths
+    private boolean stored;     // dictionary of a stored block, without codes
+    private long lengthLimitCost;
+    private TableDecoder tableDecoder;
     
     public HuffmanDict() {
-        this.freqs = new int[256];
+        this.counts = new long[256];
         this.codes = new String[256];
+        this.codeBits = new int[256];
+        this.codeLengths = new int[256];
     }
 
     // Used when reading the huffman tree from a file
-    private HuffmanDict(Node node) {
+    private HuffmanDict(Node node, boolean canonical) {
+        this();
         this.tree = node;
+        this.canonical = canonical;
+        buildCodes(tree, "");
     }
 
     /**
@@ -132,41 +198,244 @@ public class HuffmanDict {
      * @param c the byte
      */
     public void add(byte c) {
-        freqs[c + 128]++;
+        counts[c + 128]++;
+    }
+
+    /**
+     * Increments the counts of the bytes in data[offset..offset+length).
+     * 
+     * @param data the data
+     * @param offset position of the first byte
+     * @param length number of bytes
+     */
+    public void add(byte[] data, int offset, int length) {
+        int counts[] = new int[256];
+        Histogram.count(data, offset, length, counts);
+        addCounts(counts);
+    }
+
+    /**
+     * Adds the given counts of each byte, indexed by the unsigned byte
+     * value, to the counts of the dictionary.
+     * 
+     * @param counts counts of at most 256 bytes
+     */
+    public void add(long counts[]) {
+        for (int b = 0; b < counts.length; b++)
+            this.counts[(byte)b + 128] += counts[b];
+    }
+
+    // Adds counts indexed by the unsigned byte value to the frequencies
+    void addCounts(int counts[]) {
+        for (int b = 0; b < 256; b++)
+            this.counts[(byte)b + 128] += counts[b];
     }
 
     /**
      * Builds the Huffman tree.
      */
     public void makeTree() {
-        PriorityQueue<Node> pqueue = new PriorityQueue<>();
-        
-        // Insert all non-zero frequency nodes into the priority queue 
+        makeTree(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds the Huffman tree with codes of at most maxCodeLength bits.
+     * If the Huffman tree has longer codes the code lengths are computed
+     * with the package-merge algorithm, which finds the optimal codes with
+     * the length limit, and the tree is rebuilt from the lengths.  Use
+     * getLengthLimitCost() to find how much the limit costs.
+     * 
+     * @param maxCodeLength maximum code length in bits
+     * @throws IllegalArgumentException if there are more than
+     * 2^maxCodeLength different bytes
+     * @throws IllegalStateException if no bytes were added
+     */
+    public void makeTree(int maxCodeLength) {
+        long time = Metrics.start();
+        int freqs[] = normalizedFreqs();
+
+        // Build the priority queue from all non-zero frequency nodes,
+        // the node with the lowest frequency comes first
+        ArrayList<Node> leaves = new ArrayList<>();
         for (int c = 0; c < 256; c++) {
             int f = freqs[c];
             if (f != 0) {
-                pqueue.insert(new Node((byte)(c - 128), f));
+                leaves.add(new Node((byte)(c - 128), f));
             }
         }
+        if (leaves.isEmpty())
+            throw new IllegalStateException("No bytes added");
+        PriorityQueue<Node> pqueue = new PriorityQueue<>(leaves, 
+                Comparator.comparingInt((Node n) -> n.f).reversed());
+        if (maxCodeLength < 1 || (maxCodeLength < 8 && pqueue.size() > (1 << maxCodeLength)))
+            throw new IllegalArgumentException("Code length limit too small: " + maxCodeLength);
 
-        // Build the Huffman tree
+        // Build the Huffman tree, a single byte is a tree with only a leaf
+        // and gets a code of length 0
         while (pqueue.size() > 1) {
             Node n1 = pqueue.remove();
-            Node n2 = pqueue.remove();
-            pqueue.insert(n1.join(n2));
+            Node n2 = pqueue.peek();
+            pqueue.replaceTop(n1.join(n2));
         }
         tree = pqueue.remove();
 
+        lengthLimitCost = 0;
+        if (tree.depth() > maxCodeLength) {
+            CodeLengthBuilder builder = new CodeLengthBuilder();
+            int lengths[] = new int[256];
+            builder.build(freqs, maxCodeLength, lengths);
+            lengthLimitCost = builder.getLengthLimitCost();
+            tree = canonicalTree(lengths, freqs);
+        }
+
         // Store the codes for each byte in an array indexed by the byte value
         // so to find the code associated with each byte from the file we just
         // access the array.
         buildCodes(tree, "");
+        Metrics.phase(Metrics.Phase.TREE, time, 0);
+    }
+
+    /**
+     * Builds a Huffman tree with canonical codes.  Only the code length of
+     * each byte is computed, by a CodeLengthBuilder, and the codes are then
+     * assigned in order of code length and byte value.  The dictionary is
+     * stored as a table of code lengths instead of a tree.
+     */
+    public void makeCanonicalTree() {
+        makeCanonicalTree(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds a Huffman tree with canonical codes of at most maxCodeLength
+     * bits.
+     * 
+     * @param maxCodeLength maximum code length in bits
+     * @throws IllegalStateException if no bytes were added
+     * @see #makeTree(int)
+     */
+    public void makeCanonicalTree(int maxCodeLength) {
+        long time = Metrics.start();
+        int freqs[] = normalizedFreqs();
+        CodeLengthBuilder builder = new CodeLengthBuilder();
+        int lengths[] = new int[256];
+        builder.build(freqs, maxCodeLength, lengths);
+        lengthLimitCost = builder.getLengthLimitCost();
+        int symbols = 0;
+        int last = 0;
+        for (int i = 0; i < 256; i++) {
+            if (freqs[i] != 0) {
+                symbols++;
+                last = i;
+            }
+        }
+        if (symbols == 0)
+            throw new IllegalStateException("No bytes added");
+        tree = (symbols == 1) ? new Node((byte)(last - 128), freqs[last])
+                : canonicalTree(lengths, freqs);
+        canonical = true;
+        buildCodes(tree, "");
+        Metrics.phase(Metrics.Phase.TREE, time, 0);
+    }
+
+    // Returns the frequencies the tree is built from
+    private int[] normalizedFreqs() {
+        int normalized[] = new int[256];
+        Histogram.normalize(counts, normalized);
+        return normalized;
+    }
+
+    /**
+     * Returns the number of bits the encoded data grew by because of the
+     * code length limit given to makeTree() or makeCanonicalTree(), or 0 
+     * if the Huffman codes were within the limit.
+     */
+    public long getLengthLimitCost() {
+        return lengthLimitCost;
+    }
+
+    // Stores the depth of each leaf in lengths, indexed by the leaf byte
+    private static void codeLengths(Node n, int depth, int lengths[]) {
+        if (n.isLeaf()) {
+            lengths[n.c + 128] = depth;
+        }
+        else {
+            codeLengths(n.left, depth + 1, lengths);
+            codeLengths(n.right, depth + 1, lengths);
+        }
+    }
+
+    /**
+     * Builds the tree of the canonical codes with the given lengths.  Codes
+     * are assigned in increasing order of length, and bytes with codes of 
+     * the same length get consecutive codes in increasing order of index.
+     * 
+     * @param lengths code lengths indexed by byte + 128, 0 if the byte has
+     * no code
+     * @param freqs byte frequencies stored in the tree leaves, or null
+     * @return the root of the tree
+     */
+    private static Node canonicalTree(int lengths[], int freqs[]) {
+        // Count the codes of each length
+        int counts[] = new int[256];
+        for (int i = 0; i < 256; i++)
+            counts[lengths[i]]++;
+        counts[0] = 0;
+
+        // Find the first code of each length
+        long nextCode[] = new long[256];
+        long code = 0;
+        for (int len = 1; len < 256; len++) {
+            code = (code + counts[len - 1]) << 1;
+            nextCode[len] = code;
+        }
+
+        Node root = new Node(0);
+        for (int i = 0; i < 256; i++) {
+            int len = lengths[i];
+            if (len == 0)
+                continue;
+            Node leaf = new Node((byte)(i - 128), (freqs != null) ? freqs[i] : 0);
+            insertLeaf(root, leaf, nextCode[len]++, len);
+        }
+        return root;
+    }
+
+    // Inserts the leaf at the position given by the code, the first bit 
+    // of the code is the highest bit
+    private static void insertLeaf(Node root, Node leaf, long code, int len) {
+        Node n = root;
+        for (int bit = len - 1; bit > 0; bit--) {
+            n.f += leaf.f;
+            boolean one = ((code >>> bit) & 1) != 0;
+            Node next = one ? n.right : n.left;
+            if (next == null) {
+                next = new Node(0);
+                if (one) n.right = next; else n.left = next;
+            }
+            n = next;
+        }
+        n.f += leaf.f;
+        if ((code & 1) != 0)
+            n.right = leaf;
+        else
+            n.left = leaf;
     }
 
     private void buildCodes(Node n, String code) {
-        if (n.left == null) {
+        if (n.isLeaf()) {
             // terminal node, assign code to its character
             codes[n.c + 128] = code;
+
+            // store the code bits for BitWriter, the first bit is bit 0
+            if (code.length() <= BitWriter.MAX_CODE_LENGTH) {
+                int bits = 0;
+                for (int i = 0; i < code.length(); i++) {
+                    if (code.charAt(i) == '1')
+                        bits |= 1 << i;
+                }
+                codeBits[n.c + 128] = bits;
+                codeLengths[n.c + 128] = code.length();
+            }
             return;
         }
         else {
@@ -191,15 +460,102 @@ public class HuffmanDict {
     }
 
     /**
-     * Returns a text representation of the Huffman tree with the following
-     * format:
+     * Returns the bits of the code of the specified byte b in the order
+     * expected by BitWriter.write().
+     * 
+     * @param b a data byte
+     * @return the code bits, the first bit of the code is bit 0
+     */
+    public int getCodeBits(byte b) {
+        return codeBits[b+128];
+    }
+
+    /**
+     * Returns the length of the code of the specified byte b.  Codes
+     * longer than BitWriter.MAX_CODE_LENGTH are only available from 
+     * encode(), build the dictionary with a code length limit to use
+     * them with BitWriter.
+     * 
+     * @param b a data byte
+     * @return the code length in bits, or 0 if the byte has no code
+     * or its code is too long, or it is the byte of a dictionary with a
+     * single byte
+     */
+    public int getCodeLength(byte b) {
+        return codeLengths[b+128];
+    }
+
+    /**
+     * Returns true if the dictionary has a single byte, which has a code
+     * of length 0: data made of that byte is encoded without any bits.
+     */
+    public boolean isSingle() {
+        return tree != null && tree.isLeaf();
+    }
+
+    /**
+     * Returns true if this is the dictionary of a stored block, read by
+     * read(), which has no codes: the data of the block is not encoded.
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * Returns the byte of a dictionary with a single byte.
+     */
+    byte getSingleByte() {
+        return tree.c;
+    }
+
+    /**
+     * Returns the representation of the dictionary stored in front of
+     * the encoded data.
+     * 
+     * For a dictionary built by makeTree() it is a text representation of
+     * the Huffman tree with the following format:
      *  - non-leaf node: (0, frequency, lefttree, righttree) 
      *  - leaf node: (1, frequency, byte_to_encode)
      *  Note that the tree is represented with ASCII codes for easy reading 
-     *  by a human. To achieve better compression the encoding of the tree 
-     *  is binary.
+     *  by a human.
+     *  
+     * For a dictionary with canonical codes it is the byte CANONICAL_HEADER
+     * followed by the code length of each byte, in order of index (byte
+     * value + 128).  A run of bytes without a code is stored as a 0 
+     * followed by the length of the run minus 1.  If the runs would make
+     * the table longer than 256 lengths, as when every other byte has no
+     * code, it is FULL_LENGTHS_HEADER followed by the 256 lengths.
+     *
+     * A dictionary with a single byte is stored as SINGLE_HEADER followed
+     * by the byte, and the dictionary of a stored block as STORED_HEADER.
      */
     public byte[] toBytes() {
+        long time = Metrics.start();
+        byte bytes[];
+        if (stored)
+            bytes = new byte[] {STORED_HEADER};
+        else if (isSingle())
+            bytes = new byte[] {SINGLE_HEADER, tree.c};
+        else if (canonical)
+            bytes = lengthTable();
+        else
+            bytes = treeText();
+        Metrics.phase(Metrics.Phase.HEADER, time, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Return a String representation of the Huffman dictionary.
+     */
+    public String toString() {
+        try {
+            return new String(treeText(), "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] treeText() {
         ByteArrayOutputStream sb = new ByteArrayOutputStream();
         try {
             toByteArray(tree, sb);
@@ -209,15 +565,109 @@ public class HuffmanDict {
         }
     }
 
+    private byte[] lengthTable() {
+        int lengths[] = new int[256];
+        codeLengths(tree, 0, lengths);
+
+        ByteBuffer sb = ByteBuffer.allocate(MAX_LENGTH_TABLE_SIZE);
+        writeLengthTable(lengths, sb);
+        return Arrays.copyOf(sb.array(), sb.position());
+    }
+
     /**
-     * Return a String representation of the Huffman dictionary.
+     * Writes CANONICAL_HEADER followed by the code lengths, or
+     * FULL_LENGTHS_HEADER followed by the lengths if it is smaller, in the
+     * format of toBytes(), into the buffer.
+     * 
+     * @param lengths code lengths indexed by byte + 128
+     * @param dst the buffer, with room for MAX_LENGTH_TABLE_SIZE bytes
      */
-    public String toString() {
-        try {
-            return new String(toBytes(), "US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+    static void writeLengthTable(int lengths[], ByteBuffer dst) {
+        if (runLengthTableSize(lengths) > 256) {
+            dst.put(FULL_LENGTHS_HEADER);
+            for (int len : lengths)
+                dst.put((byte)len);
+            return;
+        }
+        dst.put(CANONICAL_HEADER);
+        int i = 0;
+        while (i < 256) {
+            if (lengths[i] != 0) {
+                dst.put((byte)lengths[i++]);
+                continue;
+            }
+            int run = 0;
+            while (i + run < 256 && lengths[i + run] == 0)
+                run++;
+            dst.put((byte)0);
+            dst.put((byte)(run - 1));
+            i += run;
+        }
+    }
+
+    // Returns the number of bytes of the lengths with runs, without the
+    // header
+    private static int runLengthTableSize(int lengths[]) {
+        int size = 0;
+        for (int i = 0; i < 256; i++) {
+            if (lengths[i] != 0)
+                size++;
+            else if (i == 0 || lengths[i - 1] != 0)
+                size += 2;
+        }
+        return size;
+    }
+
+    /**
+     * Returns true if the byte starts a table of code lengths written by
+     * writeLengthTable().
+     */
+    static boolean isLengthTable(byte header) {
+        return header == CANONICAL_HEADER || header == FULL_LENGTHS_HEADER;
+    }
+
+    /**
+     * Reads a table of code lengths written by writeLengthTable() from
+     * the buffer.
+     * 
+     * @param src the buffer, positioned at the header of the table
+     * @param lengths array where the code lengths are stored, indexed by
+     * byte + 128
+     * @throws IllegalArgumentException if the lengths are not valid
+     */
+    static void readLengthTable(ByteBuffer src, int lengths[]) {
+        byte header = src.get();
+        if (!isLengthTable(header))
+            throw new IllegalArgumentException("Invalid code length table");
+        Arrays.fill(lengths, 0);
+        int i = 0;
+        while (i < 256) {
+            if (header == FULL_LENGTHS_HEADER) {
+                lengths[i++] = src.get() & 0xFF;
+                continue;
+            }
+            int len = src.get() & 0xFF;
+            if (len != 0) {
+                lengths[i++] = len;
+            }
+            else {
+                i += (src.get() & 0xFF) + 1;
+            }
         }
+        if (i != 256)
+            throw new IllegalArgumentException("Invalid code length table");
+        checkLengths(lengths);
+    }
+
+    /**
+     * Stores the code length of each byte in lengths, indexed by byte + 128,
+     * 0 if the byte has no code.
+     * 
+     * @param lengths array of 256 code lengths
+     */
+    void getCodeLengths(int lengths[]) {
+        Arrays.fill(lengths, 0);
+        codeLengths(tree, 0, lengths);
     }
 
     /**
@@ -228,8 +678,57 @@ public class HuffmanDict {
      * @throws IOException 
      */
     public static HuffmanDict read(DataInputStream input) throws IOException {
-        Node node = readNode(input);
-        return new HuffmanDict(node);
+        byte b = input.readByte();
+        if (isLengthTable(b))
+            return new HuffmanDict(canonicalTree(readLengthTable(b, input), null), true);
+        if (b == SINGLE_HEADER)
+            return new HuffmanDict(new Node(input.readByte(), 0), true);
+        if (b == STORED_HEADER) {
+            HuffmanDict dict = new HuffmanDict();
+            dict.stored = true;
+            return dict;
+        }
+        if (b != '(')
+            throw new IllegalArgumentException("Unexpected node start: " + (char)b);
+        Node node = readNodeBody(input);
+        return new HuffmanDict(node, false);
+    }
+
+    private static int[] readLengthTable(byte header, DataInputStream input)
+            throws IOException {
+        int lengths[] = new int[256];
+        int i = 0;
+        while (i < 256) {
+            if (header == FULL_LENGTHS_HEADER) {
+                lengths[i++] = input.readUnsignedByte();
+                continue;
+            }
+            int len = input.readUnsignedByte();
+            if (len != 0) {
+                lengths[i++] = len;
+            }
+            else {
+                i += input.readUnsignedByte() + 1;
+            }
+        }
+        if (i != 256)
+            throw new IllegalArgumentException("Invalid code length table");
+        checkLengths(lengths);
+        return lengths;
+    }
+
+    // Checks that the codes with the given lengths make up a complete
+    // binary tree
+    private static void checkLengths(int lengths[]) {
+        long kraftSum = 0;
+        for (int len : lengths) {
+            if (len > 62)
+                throw new IllegalArgumentException("Code too long: " + len);
+            if (len != 0)
+                kraftSum += 1L << (62 - len);
+        }
+        if (kraftSum != 1L << 62)
+            throw new IllegalArgumentException("Invalid code length table");
     }
 
     private void toByteArray(Node n, ByteArrayOutputStream sb) throws IOException {
@@ -254,6 +753,10 @@ public class HuffmanDict {
 
     private static Node readNode(DataInputStream input) throws IOException {
         readBeginNode(input);
+        return readNodeBody(input);
+    }
+
+    private static Node readNodeBody(DataInputStream input) throws IOException {
         if (isLeafNode(input))
             return readLeafNode(input);
         else
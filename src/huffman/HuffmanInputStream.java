@@ -0,0 +1,154 @@
+package huffman;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which reads a block stream, in the format written by
+ * BlockEncoder or HuffmanOutputStream, from the underlying input stream
+ * and returns the decoded bytes.  Blocks are read and decoded one at a
+ * time when they are needed, and a read into an array large enough for
+ * a whole block decodes the block directly into the array.
+ *
+ * The underlying stream is not read past the end of the block stream.
+ */
+public class HuffmanInputStream extends FilterInputStream {
+    private final DataInputStream data;
+    private final BlockDecoder.StreamHeader header;
+    private byte coded[] = new byte[0];
+    private byte block[] = new byte[0];
+    private int pos;            // position of the next byte in block
+    private int count;          // number of decoded bytes in block
+    private long total;         // number of bytes in the blocks read so far
+    private boolean ended;      // the end of the block stream was read
+
+    // Next block, read but not decoded yet
+    private TableDecoder nextDecoder;
+    private int nextLength;
+    private int nextCodedLength;
+
+    /**
+     * Creates an input stream which decodes the block stream read from
+     * the given input stream.  The stream header is read immediately.
+     *
+     * @param in the underlying input stream
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the input is not a block stream
+     */
+    public HuffmanInputStream(InputStream in) throws IOException {
+        super(in);
+        this.data = new DataInputStream(in);
+        this.header = new BlockDecoder.StreamHeader(data);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == count && !fillBlock())
+            return -1;
+        return block[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (pos == count) {
+            if (!readBlockHeader())
+                return -1;
+            if (nextLength <= len) {
+                // Decode the whole block into the caller's array
+                decodeNextBlock(b, off);
+                return nextLength;
+            }
+            growBlock(nextLength);
+            decodeNextBlock(block, 0);
+            pos = 0;
+            count = nextLength;
+        }
+        int n = Math.min(len, count - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (pos == count && !fillBlock())
+                break;
+            int k = (int)Math.min(n - skipped, count - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of decoded bytes which can be read without
+     * reading the underlying stream.
+     */
+    @Override
+    public int available() {
+        return count - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    // Reads and decodes the next block into block, returns false at the
+    // end of the stream
+    private boolean fillBlock() throws IOException {
+        if (!readBlockHeader())
+            return false;
+        growBlock(nextLength);
+        decodeNextBlock(block, 0);
+        pos = 0;
+        count = nextLength;
+        return true;
+    }
+
+    // Reads the header and the encoded data of the next block, returns
+    // false at the end of the stream
+    private boolean readBlockHeader() throws IOException {
+        if (ended)
+            return false;
+        nextLength = BlockDecoder.readLength(data);
+        if (nextLength == 0) {
+            ended = true;
+            header.checkTotal(total);
+            return false;
+        }
+        total = header.checkBlock(total, nextLength);
+        nextDecoder = header.blockDictionary(data).getTableDecoder();
+        nextCodedLength = BlockDecoder.readLength(data);
+        coded = BlockDecoder.readFully(data, coded, nextCodedLength);
+        return true;
+    }
+
+    private void decodeNextBlock(byte[] dst, int dstPos) {
+        if (header.interleaved)
+            nextDecoder.decodeInterleaved(coded, 0, nextCodedLength, dst, dstPos, nextLength);
+        else
+            nextDecoder.decode(coded, 0, nextCodedLength, dst, dstPos, nextLength);
+    }
+
+    private void growBlock(int length) {
+        if (block.length < length)
+            block = new byte[length];
+    }
+}
@@ -0,0 +1,127 @@
+package huffman;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream which encodes the bytes written to it and writes them to
+ * the underlying output stream as a block stream, in the format written
+ * by BlockEncoder.  The bytes are collected in a buffer of one block, and
+ * each full block is encoded and written in the calling thread.
+ *
+ * flush() ends the current block, so all the bytes written so far can be
+ * decoded by the reader, and close() ends the stream.
+ */
+public class HuffmanOutputStream extends FilterOutputStream {
+    private final HuffmanDict dictionary;
+    private final byte block[];
+    private int count;          // number of bytes in block
+    private boolean finished;
+
+    /**
+     * Creates an output stream with blocks of BlockEncoder.DEFAULT_BLOCK_SIZE
+     * bytes, each encoded with its own dictionary.  The stream header is
+     * written immediately.
+     *
+     * @param out the underlying output stream
+     * @throws IOException if an error occurs during writing
+     */
+    public HuffmanOutputStream(OutputStream out) throws IOException {
+        this(out, BlockEncoder.DEFAULT_BLOCK_SIZE, null);
+    }
+
+    /**
+     * Creates an output stream with the given block size.  The stream
+     * header is written immediately.
+     *
+     * @param out the underlying output stream
+     * @param blockSize the largest number of bytes in a block
+     * @param dictionary dictionary with a code for each byte written,
+     * or null to encode each block with its own dictionary
+     * @throws IOException if an error occurs during writing
+     */
+    public HuffmanOutputStream(OutputStream out, int blockSize,
+            HuffmanDict dictionary) throws IOException {
+        super(out);
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.dictionary = dictionary;
+        this.block = new byte[blockSize];
+        BlockEncoder.writeStreamHeader(out, dictionary, -1, false, false);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (count == block.length)
+            writeBlock();
+        block[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            if (count == block.length)
+                writeBlock();
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encodes the bytes written since the last block, if any, as a block
+     * and flushes the underlying output stream.  After finish() it only
+     * flushes the underlying output stream, like DeflaterOutputStream.
+     *
+     * @throws IOException if an error occurs during writing
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished)
+            writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the last block and the end of the stream, without closing
+     * the underlying output stream.  No more bytes can be written.
+     *
+     * @throws IOException if an error occurs during writing
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        writeBlock();
+        Varint.write(out, 0); // end of stream
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (count == 0)
+            return;
+        out.write(BlockEncoder.encodeBlock(ByteBuffer.wrap(block, 0, count), dictionary, false));
+        count = 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (finished)
+            throw new IOException("Stream finished");
+    }
+}
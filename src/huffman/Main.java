@@ -0,0 +1,380 @@
+package huffman;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool which encodes or decodes any number of files in one
+ * process, without prompting the user.
+ *
+ * <pre>
+ * java huffman.Main [-d] [-c] [-f] [-i] [-x] [-r] [-q] [-j threads] [-S suffix] [file...]
+ * </pre>
+ *
+ * Each file is encoded into a file with the same name followed by the
+ * suffix, .huf by default, and decoded into a file without the suffix.
+ * The input files are kept.  A directory stands for the files in it, and
+ * a name with the glob characters *, ?, [ or { stands for the files it
+ * matches.  Without files, or with the file "-", the standard input is
+ * encoded or decoded into the standard output.  With -c, the output of
+ * each file goes to the standard output, and only one file can be
+ * encoded, since a decoder stops at the end of the first encoded file.
+ * With -x, the encoded files end with a block index, so
+ * RandomAccessDecoder can decode any part of them.
+ *
+ * The exit status is 0 if all the files were processed, 1 if some files
+ * could not be read, written or decoded, and 2 if the arguments are not
+ * valid.
+ */
+public class Main {
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final String USAGE =
+            "usage: java huffman.Main [options] [file...]\n"
+            + "  -d         decode instead of encoding\n"
+            + "  -c         write to the standard output\n"
+            + "  -f         overwrite existing output files\n"
+            + "  -i         encode each block in four parts, decoded faster\n"
+            + "  -x         write a block index for random access\n"
+            + "  -r         process the files in subdirectories\n"
+            + "  -q         do not report errors\n"
+            + "  -j threads number of files processed at the same time\n"
+            + "  -S suffix  suffix of encoded files, default .huf\n"
+            + "Without files, or with the file -, the standard input is processed.";
+
+    private boolean decode;
+    private boolean toStdout;
+    private boolean force;
+    private boolean interleaved;
+    private boolean indexed;
+    private boolean recursive;
+    private boolean quiet;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String suffix = ".huf";
+    private final List<String> names = new ArrayList<>();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public static void main(String[] args) {
+        System.exit(new Main().run(args));
+    }
+
+    /**
+     * Processes the files given by the command line arguments.
+     *
+     * @param args the command line arguments
+     * @return the exit status
+     */
+    int run(String[] args) {
+        try {
+            parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+
+        if (names.isEmpty())
+            names.add("-");
+        List<Path> files = new ArrayList<>();
+        boolean stdin = false;
+        for (String name : names) {
+            if (name.equals("-"))
+                stdin = true;
+            else
+                addFiles(name, files);
+        }
+        // The decoder stops at the end of the first block stream, so
+        // encoded files cannot be concatenated
+        if (toStdout && !decode && files.size() + (stdin ? 1 : 0) > 1)
+            return usage("-c encodes a single file");
+
+        if (stdin)
+            processStdin();
+        if (toStdout || threads == 1 || files.size() <= 1)
+            processInOrder(files);
+        else
+            processInParallel(files);
+        System.out.flush();
+        return failed.get() ? EXIT_FAILED : EXIT_OK;
+    }
+
+    private static int usage(String message) {
+        System.err.println("huffman: " + message);
+        System.err.println(USAGE);
+        return EXIT_USAGE;
+    }
+
+    private void parse(String[] args) {
+        boolean options = true;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!options || !arg.startsWith("-") || arg.equals("-")) {
+                names.add(arg);
+                continue;
+            }
+            if (arg.equals("--")) {
+                options = false;
+                continue;
+            }
+            for (int k = 1; k < arg.length(); k++) {
+                char option = arg.charAt(k);
+                switch (option) {
+                case 'd': decode = true; break;
+                case 'c': toStdout = true; break;
+                case 'f': force = true; break;
+                case 'i': interleaved = true; break;
+                case 'x': indexed = true; break;
+                case 'r': recursive = true; break;
+                case 'q': quiet = true; break;
+                case 'j':
+                case 'S':
+                    // The value is the rest of the argument or the next one
+                    String value;
+                    if (k + 1 < arg.length())
+                        value = arg.substring(k + 1);
+                    else if (i + 1 < args.length)
+                        value = args[++i];
+                    else
+                        throw new IllegalArgumentException("Missing value of -" + option);
+                    if (option == 'j')
+                        threads = parseThreads(value);
+                    else if (value.isEmpty())
+                        throw new IllegalArgumentException("Empty suffix");
+                    else
+                        suffix = value;
+                    k = arg.length();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option -" + option);
+                }
+            }
+        }
+    }
+
+    private static int parseThreads(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid number of threads: " + value);
+    }
+
+    // Adds the files given by a command line name: a file, a directory
+    // or a glob pattern
+    private void addFiles(String name, List<Path> files) {
+        try {
+            Path path = Paths.get(name);
+            if (Files.isDirectory(path)) {
+                addDirectory(path, files);
+                return;
+            }
+            if (Files.exists(path) || !isGlob(name)) {
+                files.add(path);
+                return;
+            }
+        }
+        catch (InvalidPathException e) {
+            if (!isGlob(name)) {
+                error(name, "invalid file name");
+                return;
+            }
+        }
+        addGlob(name, files);
+    }
+
+    private void addDirectory(Path dir, List<Path> files) {
+        try (Stream<Path> paths = Files.walk(dir, recursive ? Integer.MAX_VALUE : 1)) {
+            files.addAll(paths.filter(p -> Files.isRegularFile(p) && accepts(p))
+                    .sorted().collect(Collectors.toList()));
+        }
+        catch (IOException | RuntimeException e) {
+            error(dir.toString(), message(e));
+        }
+    }
+
+    // Adds the files matching a glob pattern, searched in the directory
+    // before the first name containing glob characters
+    private void addGlob(String pattern, List<Path> files) {
+        String separator = FileSystems.getDefault().getSeparator();
+        String parts[] = pattern.split(Pattern.quote(separator), -1);
+        int fixed = 0;
+        while (fixed < parts.length - 1 && !isGlob(parts[fixed]))
+            fixed++;
+        String base = String.join(separator, Arrays.asList(parts).subList(0, fixed));
+        boolean relative = base.isEmpty() && !pattern.startsWith(separator);
+        Path dir = Paths.get(relative ? "." : base.isEmpty() ? separator : base);
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : parts.length - fixed;
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<Path> matches = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir, depth)) {
+            paths.map(p -> relative ? dir.relativize(p) : p)
+                    .filter(p -> matcher.matches(p) && Files.isRegularFile(p))
+                    .sorted().forEach(matches::add);
+        }
+        catch (IOException | RuntimeException e) {
+            error(pattern, message(e));
+            return;
+        }
+        if (matches.isEmpty())
+            error(pattern, "no such file");
+        files.addAll(matches);
+    }
+
+    private static boolean isGlob(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0
+                || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+    }
+
+    // Files found in directories are skipped if they are already encoded,
+    // or if they are not encoded when decoding
+    private boolean accepts(Path file) {
+        return file.getFileName().toString().endsWith(suffix) == decode;
+    }
+
+    private void processStdin() {
+        try {
+            OutputStream output = new BufferedOutputStream(System.out);
+            if (decode)
+                MainDecode.decode(System.in, output, ForkJoinPool.commonPool());
+            else
+                new BlockEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool(),
+                        interleaved, indexed).encode(System.in, output);
+            output.flush();
+        }
+        catch (IOException | RuntimeException e) {
+            error("(stdin)", message(e));
+        }
+    }
+
+    private void processInOrder(List<Path> files) {
+        // A single file is split into blocks processed in parallel
+        ForkJoinPool pool = (threads > 1) ? ForkJoinPool.commonPool() : null;
+        for (Path file : files)
+            process(file, pool);
+    }
+
+    private void processInParallel(List<Path> files) {
+        // Each file is processed in one thread of the executor
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (Path file : files)
+                results.add(executor.submit(() -> process(file, null)));
+            for (Future<?> result : results)
+                result.get();
+        }
+        catch (Exception e) {
+            error("huffman", message(e));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    // Encodes or decodes a file, pool is where blocks are processed,
+    // or null to process them in the calling thread
+    private void process(Path file, ForkJoinPool pool) {
+        Path target = null;
+        boolean created = false;
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (toStdout) {
+                OutputStream output = new BufferedOutputStream(System.out);
+                process(input, output, pool);
+                output.flush();
+                return;
+            }
+
+            target = targetFile(file);
+            if (target == null)
+                return;
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(target,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+                    force ? StandardOpenOption.CREATE : StandardOpenOption.CREATE_NEW))) {
+                created = true;
+                process(input, output, pool);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            error(file.toString(), message(e));
+            if (created)
+                deletePartial(target);
+        }
+    }
+
+    private void process(FileChannel input, OutputStream output,
+            ForkJoinPool pool) throws IOException {
+        if (decode)
+            MainDecode.decode(input, output, pool);
+        else
+            new BlockEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, pool, interleaved, indexed)
+                    .encode(input, output, null);
+    }
+
+    // Returns the output file for the input file, or null if there is none
+    private Path targetFile(Path file) {
+        String name = file.getFileName().toString();
+        if (!decode)
+            return file.resolveSibling(name + suffix);
+        if (!name.endsWith(suffix) || name.length() == suffix.length()) {
+            error(file.toString(), "unknown suffix, ignored");
+            return null;
+        }
+        return file.resolveSibling(name.substring(0, name.length() - suffix.length()));
+    }
+
+    private void deletePartial(Path target) {
+        try {
+            Files.deleteIfExists(target);
+        }
+        catch (IOException e) {
+            error(target.toString(), message(e));
+        }
+    }
+
+    private void error(String name, String message) {
+        failed.set(true);
+        if (!quiet) {
+            synchronized (System.err) {
+                System.err.println("huffman: " + name + ": " + message);
+            }
+        }
+    }
+
+    private static String message(Throwable e) {
+        if (e instanceof FileAlreadyExistsException)
+            return "output file already exists, use -f to overwrite it";
+        if (e instanceof NoSuchFileException)
+            return "no such file";
+        if (e instanceof EOFException)
+            return "unexpected end of file";
+        return (e.getMessage() != null) ? e.getMessage() : e.toString();
+    }
+}
@@ -0,0 +1,405 @@
+package huffman;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark program for the encoder and decoder.
+ *
+ * <pre>
+ * java huffman.MainBenchmark [-c corpora] [-s sizes] [-b benchmarks] [-t seconds]
+ * </pre>
+ *
+ * Each benchmark runs on generated input of each corpus and size: text,
+ * log lines, binary records, skewed and uniform bytes, of 1 KB to 1 GB.
+ * A benchmark is warmed up, then run repeatedly for the given time, and
+ * its throughput in MB/s of input and runs per second, and the bytes it
+ * allocates per run are printed, so the results of two versions can be
+ * compared.  The ratio column is the compressed size of HuffmanCodec, or
+ * of ContextCodec for the context benchmarks, divided by the input size.
+ * The tree building benchmarks only depend on the histogram,
+ * so their runs per second are the meaningful number.  Allocation
+ * is measured with the allocation counter of the JVM's ThreadMXBean and
+ * reported as n/a when the JVM does not have one.
+ *
+ * This program is a quick check which runs without any library.  It
+ * runs all the benchmarks in one JVM, so the order in which the JIT
+ * compiles them can change the results; the JMH benchmarks in the jmh
+ * directory, CodecBenchmark and TreeBenchmark, run each benchmark in
+ * separate forks and are the ones to use for comparing versions.
+ */
+public class MainBenchmark {
+    static final String CORPORA[] = {"text", "logs", "binary", "skewed", "uniform"};
+    static final String BENCHMARKS[] = {
+        "histogram", "maketree", "codelengths", "encode", "decode", "interleaveddecode",
+        "writedata", "tabledecode", "pqueue", "contextencode", "contextdecode"
+    };
+    static final String SIZES[] = {"1K", "64K", "1M", "16M"};
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // Results are added here so the JIT cannot remove the benchmarked code
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        List<String> corpora = Arrays.asList(CORPORA);
+        List<String> benchmarks = Arrays.asList(BENCHMARKS);
+        List<String> sizes = Arrays.asList(SIZES);
+        double seconds = 1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = (i + 1 < args.length) ? args[i + 1] : null;
+                if (value == null)
+                    throw new IllegalArgumentException("Missing value of " + args[i]);
+                switch (args[i++]) {
+                case "-c": corpora = Arrays.asList(value.split(",")); break;
+                case "-s": sizes = Arrays.asList(value.split(",")); break;
+                case "-b": benchmarks = Arrays.asList(value.split(",")); break;
+                case "-t": seconds = Double.parseDouble(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+                }
+            }
+            for (String size : sizes)
+                parseSize(size);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java huffman.MainBenchmark [-c " + String.join(",", CORPORA)
+                    + "] [-s " + String.join(",", SIZES) + "] [-b " + String.join(",", BENCHMARKS)
+                    + "] [-t seconds]");
+            System.exit(2);
+        }
+
+        System.out.printf("%-14s %-8s %6s %12s %12s %14s %8s%n",
+                "benchmark", "corpus", "size", "MB/s", "runs/s", "alloc B/run", "ratio");
+        for (String corpus : corpora) {
+            for (String size : sizes) {
+                byte[] data = generate(corpus, parseSize(size), new Random(42));
+                for (String benchmark : benchmarks)
+                    run(benchmark, corpus, size, data, seconds);
+            }
+        }
+        if (Metrics.ENABLED)
+            System.out.print(Metrics.get());
+    }
+
+    static int parseSize(String size) {
+        String s = size.toUpperCase();
+        long unit = 1;
+        if (s.endsWith("K"))
+            unit = 1024;
+        else if (s.endsWith("M"))
+            unit = 1024 * 1024;
+        else if (s.endsWith("G"))
+            unit = 1024 * 1024 * 1024;
+        if (unit != 1)
+            s = s.substring(0, s.length() - 1);
+        try {
+            long n = Long.parseLong(s) * unit;
+            if (n > 0 && n <= Integer.MAX_VALUE - 8)
+                return (int)n;
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid size: " + size);
+    }
+
+    /**
+     * A benchmarked operation on the input data, returns a value which
+     * depends on the result.
+     */
+    interface Operation {
+        long run() throws IOException;
+    }
+
+    private static void run(String benchmark, String corpus, String size,
+            byte[] data, double seconds) throws IOException {
+        HuffmanCodec codec = new HuffmanCodec();
+        ByteBuffer compressed = ByteBuffer.allocate(codec.maxCompressedLength(data.length));
+        codec.compress(data, 0, data.length, compressed);
+        compressed.flip();
+        double ratio = (double)compressed.remaining() / data.length;
+
+        int counts[] = new int[256];
+        Histogram.count(data, 0, data.length, counts);
+        int freqs[] = new int[256];
+        for (int b = 0; b < 256; b++)
+            freqs[b ^ 0x80] = counts[b];
+
+        Operation operation;
+        switch (benchmark) {
+        case "histogram": {
+            int scratch[] = new int[Histogram.SCRATCH_SIZE];
+            operation = () -> {
+                Arrays.fill(counts, 0);
+                Histogram.count(data, 0, data.length, counts, scratch);
+                return counts[0];
+            };
+            break;
+        }
+        case "maketree":
+            operation = () -> {
+                HuffmanDict dict = new HuffmanDict();
+                dict.addCounts(counts);
+                dict.makeTree(BitWriter.MAX_CODE_LENGTH);
+                return dict.getCodeLength(data[0]);
+            };
+            break;
+        case "codelengths": {
+            CodeLengthBuilder builder = new CodeLengthBuilder();
+            int lengths[] = new int[256];
+            operation = () -> builder.build(freqs, BitWriter.MAX_CODE_LENGTH, lengths);
+            break;
+        }
+        case "encode": {
+            ByteBuffer dst = ByteBuffer.allocate(compressed.capacity());
+            operation = () -> {
+                dst.clear();
+                return codec.compress(data, 0, data.length, dst);
+            };
+            break;
+        }
+        case "decode": {
+            ByteBuffer dst = ByteBuffer.allocate(data.length);
+            operation = () -> {
+                dst.clear();
+                compressed.rewind();
+                return codec.decompress(compressed, dst);
+            };
+            break;
+        }
+        case "interleaveddecode": {
+            HuffmanCodec interleaved = new HuffmanCodec(BlockEncoder.DEFAULT_BLOCK_SIZE, true);
+            ByteBuffer interleavedCompressed =
+                    ByteBuffer.allocate(interleaved.maxCompressedLength(data.length));
+            interleaved.compress(data, 0, data.length, interleavedCompressed);
+            interleavedCompressed.flip();
+            ByteBuffer dst = ByteBuffer.allocate(data.length);
+            operation = () -> {
+                dst.clear();
+                interleavedCompressed.rewind();
+                return interleaved.decompress(interleavedCompressed, dst);
+            };
+            break;
+        }
+        case "writedata": {
+            HuffmanDict dict = new HuffmanDict();
+            dict.addCounts(counts);
+            dict.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+            CountingOutputStream output = new CountingOutputStream();
+            operation = () -> {
+                MainEncode.writeData(new DataInputStream(new ByteArrayInputStream(data)),
+                        dict, new DataOutputStream(output));
+                return output.count;
+            };
+            break;
+        }
+        case "tabledecode": {
+            HuffmanDict dict = new HuffmanDict();
+            dict.addCounts(counts);
+            dict.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            MainEncode.writeData(new DataInputStream(new ByteArrayInputStream(data)),
+                    dict, new DataOutputStream(encoded));
+            byte[] coded = encoded.toByteArray();
+            CountingOutputStream output = new CountingOutputStream();
+            operation = () -> {
+                dict.getTableDecoder().decode(new ByteArrayInputStream(coded), output);
+                return output.count;
+            };
+            break;
+        }
+        case "pqueue": {
+            // One insert and one remove for each input byte, as an
+            // Integer, with at most 256 elements in the queue
+            Integer values[] = new Integer[256];
+            for (int i = 0; i < 256; i++)
+                values[i] = i;
+            operation = () -> {
+                PriorityQueue<Integer> pqueue = new PriorityQueue<>();
+                long sum = 0;
+                for (int i = 0; i < data.length; i++) {
+                    pqueue.insert(values[data[i] & 0xFF]);
+                    if (pqueue.size() == 256)
+                        sum += pqueue.remove();
+                }
+                while (pqueue.size() > 0)
+                    sum += pqueue.remove();
+                return sum;
+            };
+            break;
+        }
+        case "contextencode":
+        case "contextdecode": {
+            ContextCodec contextCodec = new ContextCodec();
+            ByteBuffer contextCompressed =
+                    ByteBuffer.allocate(contextCodec.maxCompressedLength(data.length));
+            contextCodec.compress(data, 0, data.length, contextCompressed);
+            contextCompressed.flip();
+            ratio = (double)contextCompressed.remaining() / data.length;
+            if (benchmark.equals("contextencode")) {
+                ByteBuffer dst = ByteBuffer.allocate(contextCompressed.capacity());
+                operation = () -> {
+                    dst.clear();
+                    return contextCodec.compress(data, 0, data.length, dst);
+                };
+            }
+            else {
+                ByteBuffer dst = ByteBuffer.allocate(data.length);
+                operation = () -> {
+                    dst.clear();
+                    contextCompressed.rewind();
+                    return contextCodec.decompress(contextCompressed, dst);
+                };
+            }
+            break;
+        }
+        default:
+            System.err.println("Unknown benchmark " + benchmark);
+            return;
+        }
+
+        measure(benchmark, corpus, size, data.length, ratio, seconds, operation);
+    }
+
+    private static void measure(String benchmark, String corpus, String size,
+            int length, double ratio, double seconds, Operation operation) throws IOException {
+        // Warm up for a third of the time, at least 3 runs
+        long warmupEnd = System.nanoTime() + (long)(seconds * 1e9 / 3);
+        for (int i = 0; i < 3 || System.nanoTime() < warmupEnd; i++)
+            sink += operation.run();
+
+        long runs = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + (long)(seconds * 1e9);
+        long now;
+        do {
+            sink += operation.run();
+            runs++;
+            now = System.nanoTime();
+        } while (now < end || runs < 3);
+        long allocatedPerRun = (allocated < 0) ? -1 : (allocatedBytes() - allocated) / runs;
+
+        double runsPerSecond = runs * 1e9 / (now - start);
+        double mbPerSecond = runsPerSecond * length / (1024 * 1024);
+        System.out.printf("%-14s %-8s %6s %12.1f %12.1f %14s %8.3f%n", benchmark, corpus, size,
+                mbPerSecond, runsPerSecond,
+                (allocatedPerRun < 0) ? "n/a" : String.valueOf(allocatedPerRun), ratio);
+    }
+
+    // Returns the bytes allocated by the calling thread, or -1 if the
+    // JVM does not count them
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Output stream which only counts the bytes written to it.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Generates length bytes of input of the given corpus.
+     *
+     * @param corpus text, logs, binary, skewed or uniform
+     * @param length the number of bytes
+     * @param random source of random numbers
+     * @return the generated bytes
+     */
+    static byte[] generate(String corpus, int length, Random random) {
+        byte[] data = new byte[length];
+        switch (corpus) {
+        case "text":
+            fillLines(data, random, false);
+            break;
+        case "logs":
+            fillLines(data, random, true);
+            break;
+        case "binary":
+            // Records of little endian integers, small values and a few
+            // random bytes, like a typical binary file format
+            for (int i = 0; i < length; i++) {
+                int field = i % 16;
+                if (field < 4)
+                    data[i] = (byte)((field == 0) ? i >>> 4 : (field == 1) ? i >>> 12 : 0);
+                else if (field < 12)
+                    data[i] = (byte)(random.nextInt(1 + field * 4));
+                else
+                    data[i] = (byte)random.nextInt(256);
+            }
+            break;
+        case "skewed":
+            // Geometric distribution, each byte half as likely as the previous
+            for (int i = 0; i < length; i++)
+                data[i] = (byte)Math.min(255, Integer.numberOfTrailingZeros(random.nextInt() | 0x80000000));
+            break;
+        case "uniform":
+            random.nextBytes(data);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown corpus " + corpus);
+        }
+        return data;
+    }
+
+    private static final String WORDS[] = (
+            "the of and to in a is that for it as was with be by on not he this are or "
+            + "his from at which but have an they you were her she there been one all we "
+            + "their has would when if so no will can more other into some what time up "
+            + "encoder decoder huffman tree block stream dictionary frequency").split(" ");
+    private static final String LEVELS[] = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+    // Fills data with lines of words, prefixed by a time stamp and a level
+    // for log lines
+    private static void fillLines(byte[] data, Random random, boolean logs) {
+        StringBuilder line = new StringBuilder();
+        long time = 1_600_000_000_000L;
+        int pos = 0;
+        while (pos < data.length) {
+            line.setLength(0);
+            if (logs) {
+                time += random.nextInt(2000);
+                line.append(time).append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+                        .append(" [worker-").append(random.nextInt(8)).append("] ");
+            }
+            int words = 4 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                // Zipf-like choice of words, the first ones are more common
+                int index = (int)(WORDS.length * Math.pow(random.nextDouble(), 3));
+                line.append(WORDS[index]).append(w + 1 < words ? ' ' : '\n');
+            }
+            if (logs && random.nextInt(10) == 0)
+                line.insert(line.length() - 1, " id=" + Long.toHexString(random.nextLong()));
+            for (int i = 0; i < line.length() && pos < data.length; i++)
+                data[pos++] = (byte)line.charAt(i);
+        }
+    }
+}
@@ -1,57 +1,32 @@
 package huffman;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
 
 import util.Console;
 
 public class MainDecode {
 
     public static void main(String[] args) throws IOException {
-        DataInputStream input = null;
+        FileChannel input = null;
         DataOutputStream output = null;
 
         try {
             // Prompt user for input file
-            input = Console.getDataInput();
+            input = Console.getInputChannel();
 
             // Prompt user for output file
             output = Console.getDataOutput();
         
-            // Read the dictionary
-            HuffmanDict dictionary = HuffmanDict.read(input);
-            
-            // Decode the data from the rest of the input file and write
-            // it to the output file
-        try {
-            while(true) {
-                HuffmanDict.Decoder decoder = dictionary.startDecoding();
-                byte decoded = -1;
-                do {
-                    byte b = input.readByte();
-                    
-                    for (int i = 0; i < 8; i++) {
-                        byte bit = (((1 << i) & b) != 0) ? (byte)'1' : (byte)'0'; 
-                        decoded = decoder.read(bit);
-                        
-                        if (decoded == -1)
-                            continue;
-
-                        // we decoded one byte
-                        output.write(decoded);
-
-                        // start with new decoder
-                        decoder = dictionary.startDecoding();
-                        decoded = -1;
-                    }
-                } while (decoded == -1);
-
-                // we decoded one byte
-                output.write(decoded);
-            }
-        }
-        catch (EOFException e) {} // end of input stream
+            // Decode the blocks directly from the mapped input file
+            decode(input, output, ForkJoinPool.commonPool());
         }
         catch (Console.CancelException e) {
             System.out.println("Program terminated");
@@ -64,4 +39,67 @@ public class MainDecode {
                 output.close();
         }
     }
+
+    /**
+     * Decodes a file written by MainEncode, or by older versions with a 
+     * single dictionary, and writes the decoded bytes to the output stream.
+     * 
+     * @param input the encoded file, read from its beginning
+     * @param output output stream where decoded bytes are written
+     * @param pool the pool where blocks are decoded, or null to decode
+     * the blocks in the calling thread
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the file is not valid
+     */
+    static void decode(FileChannel input, OutputStream output, 
+            ForkJoinPool pool) throws IOException {
+        // Files written by MainEncode are block streams, files with a
+        // single dictionary were written by older versions
+        ByteBuffer first = ByteBuffer.allocate(1);
+        input.read(first, 0);
+
+        if (first.get(0) == BlockEncoder.BLOCK_STREAM) {
+            new BlockDecoder(pool).decode(input, output);
+        }
+        else {
+            decodeSingleDictionary(new BufferedInputStream(
+                    Channels.newInputStream(input)), output);
+        }
+    }
+
+    /**
+     * Decodes a stream written by MainEncode, or by older versions with a 
+     * single dictionary, and writes the decoded bytes to the output stream.
+     * 
+     * @param input the encoded stream
+     * @param output output stream where decoded bytes are written
+     * @param pool the pool where blocks are decoded, or null to decode
+     * the blocks in the calling thread
+     * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if the stream is not valid
+     */
+    static void decode(InputStream input, OutputStream output, 
+            ForkJoinPool pool) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input);
+        buffered.mark(1);
+        int first = buffered.read();
+        buffered.reset();
+
+        if (first == BlockEncoder.BLOCK_STREAM)
+            new BlockDecoder(pool).decode(buffered, output);
+        else
+            decodeSingleDictionary(buffered, output);
+    }
+
+    private static void decodeSingleDictionary(InputStream input, 
+            OutputStream output) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+
+        // Read the dictionary
+        HuffmanDict dictionary = HuffmanDict.read(data);
+
+        // Decode the data from the rest of the input and write it to 
+        // the output
+        dictionary.getTableDecoder().decode(data, output);
+    }
 }
@@ -1,36 +1,30 @@
 package huffman;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
 
 import util.Console;
 
 public class MainEncode {
 
     public static void main(String[] args) throws IOException {
-        DataInputStream input = null;
+        FileChannel input = null;
         DataOutputStream output = null;
 
         try {
             // Prompt user for input file
-            input = Console.getDataInput();
+            input = Console.getInputChannel();
 
             // Prompt user for output file
             output = Console.getDataOutput();
 
-            // Place a mark at the beginning of the stream so we can read it twice
-            input.mark(10000000);
-            
-            // Build the dictionary and store it into the output file
-            HuffmanDict dictionary = buildDictionary(input);
-            output.write(dictionary.toBytes());
-
-            // Go back to the marked position
-            input.reset();
-
-            // Compress data and store it into the output file
-            writeData(input, dictionary, output);
+            // Compress data block by block, reading the blocks directly
+            // from the mapped input file, and store it into the output file.
+            // Each block is encoded in four parts, decoded in parallel.
+            new BlockEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool(), true)
+                    .encode(input, output, null);
         }
         catch (Console.CancelException e) {
             System.out.println("Program terminated");
@@ -46,8 +40,8 @@ public class MainEncode {
     
     /**
      * Reads bytes from the input stream until the end of stream is 
-     * reached and builds a HuffmanDict which contains the occurrence count 
-     * of each character.
+     * reached and builds a HuffmanDict with canonical codes from the 
+     * occurrence count of each character.
      * 
      * @param input the input character stream
      * @return a HuffmanDict instance
@@ -55,15 +49,11 @@ public class MainEncode {
      */
     static HuffmanDict buildDictionary(DataInputStream input) throws IOException {
         HuffmanDict dict = new HuffmanDict();
+        byte[] data = new byte[64 * 1024];
 
-        try {
-            while(true) {
-                byte c = input.readByte();
-                dict.add(c);
-            }
-        }
-        catch (EOFException e) {} // end of stream
-        dict.makeTree();
+        for (int n = input.read(data); n != -1; n = input.read(data))
+            dict.add(data, 0, n);
+        dict.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
         return dict;
     }
 
@@ -76,92 +66,28 @@ public class MainEncode {
      * @param dict Huffman dictionary
      * @param output output stream, contains encoded data
      * @throws IOException if an error occurs during reading or writing
+     * @throws IllegalArgumentException if a byte has no code, or a code
+     * longer than BitWriter.MAX_CODE_LENGTH
      */
     static void writeData(DataInputStream input, HuffmanDict dict, 
             DataOutputStream output) throws IOException {
-        // size of the bit array used to store encoded data, must be large
-        // enough to store at least two of the longest codes
-        final int BIT_SIZE = 1024 * 8;
-        byte[] encodedBits = new byte[BIT_SIZE/8];
-        int bitCount = 0; // number of bits stored in encodedBits
+        BitWriter writer = new BitWriter(output);
+        byte[] data = new byte[64 * 1024];
+        // The byte of a single byte dictionary is encoded without any bits
+        boolean single = dict.isSingle();
 
-        for (int c = input.read(); c != -1; c = input.read()) {
-            String code = dict.encode((byte)c);
-            
-            int count = appendBits(encodedBits, bitCount, code);
-            bitCount += count;
-            if (count == 0) {
-                // must write the encodedBits to output to make room for more bits
-                byte[] bytes = encodedBits;
-                int byteCount = bitCount / 8;
-                
-                // write only the full bytes
-                output.write(bytes, 0, byteCount);
-                
-                // write the last incomplete byte into encodedBits, starting
-                // from position 0
-                int restBits = bitCount % 8;
-                byte lastByte = (restBits != 0) ? bytes[byteCount] : 0;
-                for (int i = 0; i < restBits; i++) {
-                    if ((lastByte & (1 << i)) != 0)
-                        bitSet(encodedBits, i);
-                    else
-                        bitClear(encodedBits, i);
-                }
-                bitCount = restBits;
-                
-                // we made room, try again to append the bits
-                count = appendBits(encodedBits, bitCount, code);
-                bitCount += count;
-                if (count == 0)
-                    throw new IllegalStateException("BitSet must be large enough to read one code");
-            }            
+        for (int n = input.read(data); n != -1; n = input.read(data)) {
+            for (int i = 0; i < n; i++) {
+                byte c = data[i];
+                int length = dict.getCodeLength(c);
+                if (length == 0 && !(single && c == dict.getSingleByte()))
+                    throw new IllegalArgumentException("No code found for byte " + c);
+                writer.write(dict.getCodeBits(c), length);
+            }
         }
         
         // we reached the end of input, write the rest of the encoded bits
         // (the last byte may contain extra bits)
-        byte[] bytes = encodedBits;
-        int byteCount = (bitCount + 7) / 8;
-        output.write(bytes, 0, byteCount);
-    }
-    
-    /**
-     * Appends bits from the given String into the bits BitSet, starting
-     * with position pos.  Return the number of bits appended.
-     * partial appends are not allowed.  If the String cannot be appended
-     * in its entirety then don't append anything and return 0.
-     * 
-     * The String s contains '1' for a one bit and '0' for zero bit.
-     * 
-     * @param bits the bit set where bits are appended
-     * @param pos the position where to append bits at
-     * @param s 
-     * @return the number of bits appended
-     */
-    static int appendBits(byte[] bits, int pos, String s) {
-        if ((bits.length*8 - pos) < s.length())
-            return 0; // not enough room to store bits
-        
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) == '0')
-                bitClear(bits, pos);
-            else if (s.charAt(i) == '1')
-                bitSet(bits, pos);
-            else
-                // s must contain only 1s and 0s 
-                throw new IllegalArgumentException(s);
-            pos++;
-        }
-        return s.length();
-    }
-    
-    private static void bitClear(byte[] bits, int pos) {
-        int bytePos = pos / 8;
-        bits[bytePos] &= ~(1 << (pos % 8));
-    }
-
-    private static void bitSet(byte[] bits, int pos) {
-        int bytePos = pos / 8;
-        bits[bytePos] |= (1 << (pos % 8));
+        writer.flush();
     }
 }
@@ -0,0 +1,89 @@
+package huffman;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.IntFunction;
+
+/**
+ * Runs a CompressionServer until the process is stopped.
+ *
+ * <pre>
+ * java huffman.MainServer [-p port] [-j concurrency] [-D directory]
+ * </pre>
+ *
+ * The static dictionary with ID n is read from the file n.dict of the
+ * dictionary directory, written by StaticDictionary.toBytes(), the first
+ * time a request needs it.
+ */
+public class MainServer {
+    static final int DEFAULT_PORT = 7990;
+
+    private static final String USAGE =
+            "usage: java huffman.MainServer [options]\n"
+            + "  -p port        port on the loopback address, default " + DEFAULT_PORT + "\n"
+            + "  -j concurrency number of requests processed at the same time\n"
+            + "  -D directory   directory of the static dictionaries, id.dict";
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        Path directory = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 == args.length)
+                    throw new IllegalArgumentException("Missing value of " + option);
+                String value = args[++i];
+                switch (option) {
+                case "-p": port = parseNumber(value, "port"); break;
+                case "-j": concurrency = parseNumber(value, "concurrency"); break;
+                case "-D": directory = Paths.get(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("huffman: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(Main.EXIT_USAGE);
+        }
+
+        DictionaryCache dictionaries = new DictionaryCache(
+                (directory != null) ? loader(directory) : null);
+        try (CompressionServer server = new CompressionServer(port, concurrency, dictionaries)) {
+            System.out.println("Listening on port " + server.getPort());
+            server.run();
+        }
+    }
+
+    // Returns a function which reads the dictionary files of the directory
+    private static IntFunction<byte[]> loader(Path directory) {
+        return id -> {
+            try {
+                return Files.readAllBytes(directory.resolve(id + ".dict"));
+            }
+            catch (NoSuchFileException e) {
+                return null;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static int parseNumber(String value, String name) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0 && (n > 0 || name.equals("port")))
+                return n;
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+}
@@ -5,101 +5,645 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-
-import util.Console;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Test program for Huffman encoding and decoding.
  */
 public class MainTest {
     public static void main(String[] args) throws IOException {
-        byte[] data = encode();
-        decode(data);
+        // Test with a character code larger than 0x7F
+        String test = "Laoco�n";
+        System.out.println(test);
+        byte[] original = test.getBytes("US-ASCII");
+
+        byte[] data = encode(original);
+        byte[] decoded = decode(data, original.length);
+        if (!Arrays.equals(original, decoded))
+            throw new IllegalStateException("Decoded data differs from the original");
+
+        testAllBytes();
+        testLengthTable();
+        testLargeCounts();
+        testStored();
+        testCorruptStreams();
+        testHuffmanStreams(original);
+        testAdaptiveStreams(original);
+        testContextCodec(original);
+        testRandomAccess();
+        testServer(original);
+    }
+
+    /**
+     * Encodes every other byte value, whose code length table would be
+     * largest with runs of missing bytes, and checks that the table is no
+     * larger than the 256 lengths.
+     */
+    static void testLengthTable() throws IOException {
+        byte original[] = new byte[128 * 100];
+        for (int i = 0; i < original.length; i++)
+            original[i] = (byte)(2 * (i % 128));
+        HuffmanDict dict = new HuffmanDict();
+        dict.add(original, 0, original.length);
+        dict.makeCanonicalTree();
+        byte table[] = dict.toBytes();
+        if (table.length > HuffmanDict.MAX_LENGTH_TABLE_SIZE)
+            throw new IllegalStateException("Code length table of " + table.length + " bytes");
+        HuffmanDict read = HuffmanDict.read(new DataInputStream(new ByteArrayInputStream(table)));
+        if (!Arrays.equals(table, read.toBytes()))
+            throw new IllegalStateException("Code length table read differs");
+        testRoundTrip(original);
+        System.out.println("Tested the largest code length table");
+    }
+
+    /**
+     * Encodes and decodes each of the 256 byte values alone and in runs,
+     * all of them together, and no bytes at all, with each encoder.
+     */
+    static void testAllBytes() throws IOException {
+        byte all[] = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            all[i] = (byte)i;
+            byte run[] = new byte[100000];
+            Arrays.fill(run, (byte)i);
+            testRoundTrip(new byte[] { (byte)i });
+            testRoundTrip(run);
+            testTree(new byte[] { (byte)i });
+            testTree(new byte[] { (byte)i, (byte)i, 0, (byte)(i + 1) });
+
+            // A run is stored without codes
+            int length = HuffmanCodec.current().compress(run, 0, run.length,
+                    ByteBuffer.allocate(HuffmanCodec.current().maxCompressedLength(run.length)));
+            if (length > 16)
+                throw new IllegalStateException("Run of byte " + i + " encoded in " + length + " bytes");
+        }
+        testRoundTrip(all);
+        testRoundTrip(new byte[0]);
+        testTree(all);
+        System.out.println("Tested all byte values");
+    }
+
+    /**
+     * Adds the counts of 4 TB of data in chunks of 1 GB and checks that 
+     * the codes are the ones of a single chunk.
+     */
+    static void testLargeCounts() throws IOException {
+        int chunk[] = new int[256];
+        long total = 0;
+        for (int b = 1; b < 255; b++) {
+            chunk[b] = (b + 1) * (b + 1) * 64;
+            total += chunk[b];
+        }
+        chunk[255] = (int)(Histogram.NORMALIZED_TOTAL - total);
+
+        HuffmanDict small = new HuffmanDict();
+        small.addCounts(chunk);
+        HuffmanDict large = new HuffmanDict();
+        for (int i = 0; i < 4096; i++)
+            large.addCounts(chunk);
+        small.makeTree();
+        large.makeTree();
+        if (!Arrays.equals(small.toBytes(), large.toBytes()))
+            throw new IllegalStateException("Tree of 4 TB differs from the tree of 1 GB");
+
+        small.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+        large.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+        if (!Arrays.equals(small.toBytes(), large.toBytes()))
+            throw new IllegalStateException("Canonical codes of 4 TB differ from the ones of 1 GB");
+
+        // A byte which occurs once in 4 TB still gets a code
+        large.add((byte)0);
+        large.makeCanonicalTree(BitWriter.MAX_CODE_LENGTH);
+        if (large.getCodeLength((byte)0) == 0)
+            throw new IllegalStateException("Rare byte has no code");
+        System.out.println("Tested counts of 4 TB");
+    }
+
+    /**
+     * Compresses and encodes the data, and a batch of copies of it, with
+     * a CompressionServer.
+     */
+    static void testServer(byte[] original) throws IOException {
+        DictionaryCache dictionaries = new DictionaryCache();
+        dictionaries.add(StaticDictionary.train(1, original, 0, original.length));
+        try (CompressionServer server = new CompressionServer(0, 2, dictionaries);
+                CompressionClient client = new CompressionClient(server.getPort())) {
+            server.start();
+            check(original, client.decompress(client.compress(original)), "CompressionServer", false);
+            check(original, client.decode(1, client.encode(1, original)), "CompressionServer", true);
+
+            List<byte[]> messages = Collections.nCopies(1000, original);
+            List<byte[]> decoded = client.send(CompressionServer.DECODE, 1,
+                    client.send(CompressionServer.ENCODE, 1, messages));
+            for (byte[] message : decoded)
+                check(original, message, "CompressionServer batch", false);
+            if (decoded.size() != messages.size())
+                throw new IllegalStateException("CompressionServer: " + decoded.size() + " results");
+
+            // Small requests with large results, whose responses the
+            // client reads while it writes the requests
+            ByteArrayOutputStream encodedRun = new ByteArrayOutputStream();
+            try (HuffmanOutputStream out = new HuffmanOutputStream(encodedRun)) {
+                out.write(new byte[100000]);
+            }
+            List<byte[]> results = client.send(CompressionServer.DECOMPRESS, 0,
+                    Collections.nCopies(2000, encodedRun.toByteArray()));
+            for (byte[] run : results)
+                check(new byte[100000], run, "CompressionServer pipelined", false);
+
+            try {
+                client.decode(2, original);
+                throw new IllegalStateException("CompressionServer: unknown dictionary not reported");
+            }
+            catch (IllegalArgumentException e) {
+                // expected, the connection can still be used
+            }
+            check(original, client.decompress(client.compress(original)), "CompressionServer", false);
+
+            // A stream without its original length, and one whose runs
+            // expand past the largest result
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try (HuffmanOutputStream out = new HuffmanOutputStream(encoded)) {
+                out.write(original);
+            }
+            check(original, client.decompress(encoded.toByteArray()), "CompressionServer stream", false);
+            ByteArrayOutputStream runs = new ByteArrayOutputStream();
+            runs.write(BlockEncoder.BLOCK_STREAM);
+            runs.write(0);
+            for (int i = 0; i <= CompressionServer.MAX_REQUEST_SIZE / BlockEncoder.DEFAULT_BLOCK_SIZE; i++) {
+                Varint.write(runs, BlockEncoder.DEFAULT_BLOCK_SIZE);
+                runs.write(HuffmanDict.SINGLE_HEADER);
+                runs.write('x');
+                Varint.write(runs, 0);
+            }
+            Varint.write(runs, 0);
+            try {
+                client.decompress(runs.toByteArray());
+                throw new IllegalStateException("CompressionServer: result too large not reported");
+            }
+            catch (IllegalArgumentException e) {
+                // expected, the connection can still be used
+            }
+            check(original, client.decompress(client.compress(original)), "CompressionServer", false);
+        }
+        System.out.println("Tested the compression server");
+    }
+
+    /**
+     * Encodes random data, which is stored instead of encoded, and data
+     * whose blocks are random or text.
+     */
+    static void testStored() throws IOException {
+        byte random[] = new byte[3 * BlockEncoder.DEFAULT_BLOCK_SIZE + 100];
+        new java.util.Random(1).nextBytes(random);
+        testRoundTrip(random);
+        for (int i = BlockEncoder.DEFAULT_BLOCK_SIZE; i < 2 * BlockEncoder.DEFAULT_BLOCK_SIZE; i++)
+            random[i] = (byte)('a' + i % 7);
+        testRoundTrip(random);
+
+        HuffmanCodec codec = HuffmanCodec.current();
+        int length = codec.compress(random, 0, random.length,
+                ByteBuffer.allocate(codec.maxCompressedLength(random.length)));
+        if (length > random.length - BlockEncoder.DEFAULT_BLOCK_SIZE / 2)
+            throw new IllegalStateException("Random data encoded in " + length + " bytes");
+        System.out.println("Tested stored blocks");
     }
 
-    static byte[] encode() throws IOException {
-        DataInputStream input = null;
-        DataOutputStream output = null;
-        ByteArrayOutputStream bytes = null;
+    /**
+     * Decodes streams whose lengths do not add up or whose tree has too
+     * many leaves, which must fail without allocating what they claim.
+     */
+    static void testCorruptStreams() throws IOException {
+        // A stream of 2 GB with a block of 3 bytes
+        byte abc[] = "abc".getBytes("US-ASCII");
         try {
-            // Test with a character code larger than 0x7F
-            String test = "Laoco�n";
-            System.out.println(test);
-            input = new DataInputStream(new ByteArrayInputStream(test.getBytes("US-ASCII")));
-
-            // output file
-            bytes = new ByteArrayOutputStream();
-            output = new DataOutputStream(bytes);
-
-            // Place a mark at the beginning of the stream so we can read it twice
-            // This limits the size of the file we can encode.
-            input.mark(10000000);
-            
-            // Build the dictionary and store it into the output file
-            HuffmanDict dictionary = buildDictionary(input);
-            output.write(dictionary.toBytes());
+            new BlockDecoder(null).decode(ByteBuffer.wrap(
+                    withOriginalLength(abc, Integer.MAX_VALUE - 8)));
+            throw new IllegalStateException("BlockDecoder: missing blocks not reported");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HuffmanCodec.current().decompress(ByteBuffer.wrap(withOriginalLength(abc, 5)),
+                    ByteBuffer.allocate(5));
+            throw new IllegalStateException("HuffmanCodec: missing blocks not reported");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
 
-            // Go back to the marked position
-            input.reset();
+        // A tree in the format of older versions, with 512 leaves
+        byte tree[] = balancedTree(9).getBytes("US-ASCII");
+        try {
+            HuffmanDict.read(new DataInputStream(new ByteArrayInputStream(tree))).getTableDecoder();
+            throw new IllegalStateException("TableDecoder: too many leaves not reported");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        System.out.println("Tested corrupt streams");
+    }
 
-            // Compress data and store it into the output file
-            writeData(input, dictionary, output);
+    // Returns the block stream of the data with the original length in
+    // its header replaced by the given length
+    private static byte[] withOriginalLength(byte[] data, long originalLength) {
+        HuffmanCodec codec = HuffmanCodec.current();
+        ByteBuffer stream = ByteBuffer.allocate(codec.maxCompressedLength(data.length));
+        codec.compress(data, 0, data.length, stream);
+        stream.flip();
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        changed.write(stream.get()); // BLOCK_STREAM
+        changed.write(stream.get()); // flags, with ORIGINAL_LENGTH
+        Varint.read(stream);
+        try {
+            Varint.write(changed, originalLength);
         }
-        catch (Console.CancelException e) {
-            System.out.println("Program terminated");
+        catch (IOException e) {
+            throw new IllegalStateException(e);
         }
-        finally {
-            // The finally block gets executed even if the user cancels
-            if (input != null)
-                input.close();
-            if (output != null)
-                output.close();
-            System.out.println(bytes.toString());
-        }
-        return bytes.toByteArray();
+        changed.write(stream.array(), stream.position(), stream.remaining());
+        return changed.toByteArray();
+    }
+
+    // Returns the text of a tree whose leaves all have the given depth
+    private static String balancedTree(int depth) {
+        if (depth == 0)
+            return "(1,1,x)";
+        return "(0,2," + balancedTree(depth - 1) + "," + balancedTree(depth - 1) + ")";
     }
 
     /**
-     * Reads bytes from the input stream.  First build a Huffman dictionary. 
-     * then decodes the rest of the data using that dictionary.
-     * 
-     * @param data
-     * @throws IOException
+     * Writes a HuffmanOutputStream in several blocks, checks that the
+     * bytes written before flush() can be read before the stream ends,
+     * and that the stream can be flushed but not written after finish().
      */
-    static void decode(byte[] data) throws IOException {
-        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
-        
-        HuffmanDict dictionary = HuffmanDict.read(input);
-        System.out.println(dictionary.toString());
-        
+    static void testHuffmanStreams(byte[] original) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        HuffmanOutputStream out = new HuffmanOutputStream(encoded, 4, null);
+        out.write(original);
+        out.flush();
+        byte decoded[] = new byte[original.length];
+        new DataInputStream(new HuffmanInputStream(
+                new ByteArrayInputStream(encoded.toByteArray()))).readFully(decoded);
+        check(original, decoded, "HuffmanOutputStream flushed", false);
+
+        out.write(original, 0, 2);
+        out.finish();
+        out.flush();
         try {
-            while(true) {
-                HuffmanDict.Decoder decoder = dictionary.startDecoding();
-                byte decoded = -1;
-                do {
-                    byte b = input.readByte();
-                    
-                    for (int i = 0; i < 8; i++) {
-                        byte bit = (((1 << i) & b) != 0) ? (byte)'1' : (byte)'0'; 
-                        decoded = decoder.read(bit);
-                        
-                        if (decoded == -1)
-                            continue;
-
-                        // we decoded one byte
-                        System.out.print((char)decoded);
-
-                        // start with new decoder
-                        decoder = dictionary.startDecoding();
-                        decoded = -1;
+            out.write(original[0]);
+            throw new IllegalStateException("HuffmanOutputStream: write after finish() not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        out.close();
+
+        byte expected[] = Arrays.copyOf(original, original.length + 2);
+        System.arraycopy(original, 0, expected, original.length, 2);
+        decoded = new byte[expected.length];
+        try (InputStream in = new HuffmanInputStream(
+                new ByteArrayInputStream(encoded.toByteArray()))) {
+            new DataInputStream(in).readFully(decoded);
+            if (in.read() != -1)
+                throw new IllegalStateException("HuffmanInputStream: too many bytes");
+        }
+        check(expected, decoded, "HuffmanOutputStream", false);
+
+        // A block which claims 2 GB of encoded data and ends after 3 bytes
+        HuffmanDict dict = new HuffmanDict();
+        dict.add(original, 0, original.length);
+        dict.makeCanonicalTree();
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        truncated.write(BlockEncoder.BLOCK_STREAM);
+        truncated.write(0);
+        Varint.write(truncated, 10);
+        truncated.write(dict.toBytes());
+        Varint.write(truncated, Integer.MAX_VALUE - 8);
+        truncated.write(original, 0, 3);
+        try (InputStream in = new HuffmanInputStream(
+                new ByteArrayInputStream(truncated.toByteArray()))) {
+            in.read();
+            throw new IllegalStateException("HuffmanInputStream: truncated block not reported");
+        }
+        catch (EOFException e) {
+            // expected
+        }
+        System.out.println("Tested Huffman streams");
+    }
+
+    /**
+     * Encodes and decodes adaptive streams which are empty, shorter than
+     * one interval, and span several intervals while the byte
+     * frequencies change, so the codes are rebuilt for different data.
+     */
+    static void testAdaptiveStreams(byte[] original) throws IOException {
+        testAdaptive(new byte[0], 64);
+        testAdaptive(original, 64);
+
+        // Text, then random bytes, then a run, each over several intervals
+        byte changing[] = new byte[3000];
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < changing.length; i++) {
+            if (i < 1000)
+                changing[i] = (byte)('a' + random.nextInt(4));
+            else if (i < 2000)
+                changing[i] = (byte)random.nextInt(256);
+            else
+                changing[i] = (byte)0xFF;
+        }
+        testAdaptive(changing, 64);
+        testAdaptive(changing, 1000);
+        testAdaptive(changing, AdaptiveModel.DEFAULT_INTERVAL);
+
+        try {
+            new AdaptiveOutputStream(new ByteArrayOutputStream(), AdaptiveModel.MAX_INTERVAL + 1);
+            throw new IllegalStateException("AdaptiveOutputStream: invalid interval not reported");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // A segment of the largest interval which ends after 3 bytes
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        truncated.write(AdaptiveModel.ADAPTIVE_STREAM);
+        Varint.write(truncated, AdaptiveModel.MAX_INTERVAL);
+        Varint.write(truncated, AdaptiveModel.MAX_INTERVAL);
+        Varint.write(truncated, AdaptiveModel.maxCodedLength(AdaptiveModel.MAX_INTERVAL));
+        truncated.write(original, 0, 3);
+        try (InputStream in = new AdaptiveInputStream(
+                new ByteArrayInputStream(truncated.toByteArray()))) {
+            in.read();
+            throw new IllegalStateException("AdaptiveInputStream: truncated segment not reported");
+        }
+        catch (EOFException e) {
+            // expected
+        }
+        System.out.println("Tested adaptive streams");
+    }
+
+    // Encodes the data with the given interval, flushing in the middle
+    // and after the end, and decodes it
+    private static void testAdaptive(byte[] original, int interval) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (AdaptiveOutputStream out = new AdaptiveOutputStream(encoded, interval)) {
+            out.write(original, 0, original.length / 3);
+            out.flush();
+            out.write(original, original.length / 3, original.length - original.length / 3);
+            out.finish();
+            out.flush();
+        }
+        byte decoded[] = new byte[original.length];
+        try (InputStream in = new AdaptiveInputStream(
+                new ByteArrayInputStream(encoded.toByteArray()))) {
+            new DataInputStream(in).readFully(decoded);
+            if (in.read() != -1)
+                throw new IllegalStateException("AdaptiveInputStream: too many bytes");
+        }
+        check(original, decoded, "AdaptiveOutputStream interval " + interval, false);
+    }
+
+    /**
+     * Compresses and decompresses with ContextCodec from and into heap and
+     * direct buffers: no bytes, contexts always followed by the same byte,
+     * and text and random bytes in several blocks.  Buffers which are too
+     * small must be reported, not filled with part of the data.
+     */
+    static void testContextCodec(byte[] original) throws IOException {
+        byte alternating[] = new byte[1000];
+        for (int i = 0; i < alternating.length; i++)
+            alternating[i] = (byte)((i % 2 == 0) ? 'a' : 0x80);
+        byte mixed[] = new byte[5000];
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < mixed.length; i++)
+            mixed[i] = (byte)((i < 3000) ? "the cat sat on the mat\n".charAt(i % 23) : random.nextInt(256));
+
+        for (byte data[] : new byte[][] { new byte[0], original, alternating, new byte[100], mixed }) {
+            testContext(new ContextCodec(), data);
+            testContext(new ContextCodec(700), data);
+        }
+
+        ContextCodec codec = new ContextCodec(700);
+        ByteBuffer compressed = ByteBuffer.allocate(codec.maxCompressedLength(mixed.length));
+        int length = codec.compress(mixed, 0, mixed.length, compressed);
+        try {
+            codec.compress(mixed, 0, mixed.length, ByteBuffer.allocate(length - 1));
+            throw new IllegalStateException("ContextCodec: compress into a small buffer not reported");
+        }
+        catch (java.nio.BufferOverflowException e) {
+            // expected
+        }
+        compressed.flip();
+        try {
+            codec.decompress(compressed, ByteBuffer.allocate(mixed.length - 1));
+            throw new IllegalStateException("ContextCodec: decompress into a small buffer not reported");
+        }
+        catch (java.nio.BufferOverflowException e) {
+            // expected
+        }
+        System.out.println("Tested the context codec");
+    }
+
+    // Compresses and decompresses the data with each kind of buffer
+    private static void testContext(ContextCodec codec, byte[] original) {
+        for (boolean direct : new boolean[] { false, true }) {
+            ByteBuffer src = direct ? ByteBuffer.allocateDirect(original.length)
+                    : ByteBuffer.allocate(original.length);
+            src.put(original).flip();
+            int capacity = codec.maxCompressedLength(original.length);
+            ByteBuffer compressed = direct ? ByteBuffer.allocateDirect(capacity)
+                    : ByteBuffer.allocate(capacity);
+            int length = codec.compress(src, compressed);
+            compressed.flip();
+            if (src.hasRemaining() || compressed.remaining() != length)
+                throw new IllegalStateException("ContextCodec: wrong buffer positions");
+
+            ByteBuffer decompressed = direct ? ByteBuffer.allocateDirect(original.length)
+                    : ByteBuffer.allocate(original.length);
+            if (codec.decompress(compressed, decompressed) != original.length
+                    || compressed.hasRemaining())
+                throw new IllegalStateException("ContextCodec: wrong decompressed length");
+            byte decoded[] = new byte[original.length];
+            decompressed.flip();
+            decompressed.get(decoded);
+            check(original, decoded, "ContextCodec", direct);
+        }
+    }
+
+    /**
+     * Encodes text, random data and runs into files with a block index,
+     * and decodes ranges which start and end inside blocks, on block
+     * boundaries and beyond the end of the data.
+     */
+    static void testRandomAccess() throws IOException {
+        byte original[] = new byte[40000];
+        java.util.Random random = new java.util.Random(1);
+        random.nextBytes(original);
+        for (int i = 10000; i < 30000; i++)
+            original[i] = (byte)((i < 25000) ? 'a' + random.nextInt(7) : 'z');
+
+        Path file = Files.createTempFile("huffman", ".huf");
+        try {
+            for (boolean interleaved : new boolean[] { false, true }) {
+                BlockEncoder encoder = new BlockEncoder(4096, null, interleaved, true);
+                try (OutputStream output = Files.newOutputStream(file)) {
+                    if (interleaved) {
+                        encoder.encode(new ByteArrayInputStream(original), output);
+                    } else {
+                        try (FileChannel input = openTemp(original)) {
+                            encoder.encode(input, output, null);
+                        }
                     }
-                } while (decoded == -1);
+                }
+                // The index is after the end of the stream
+                check(original, new BlockDecoder().decode(ByteBuffer.wrap(Files.readAllBytes(file))),
+                        "BlockEncoder indexed", interleaved);
+
+                try (FileChannel channel = FileChannel.open(file)) {
+                    RandomAccessDecoder decoder = new RandomAccessDecoder(channel);
+                    check(original, decoder.read(0, original.length), "RandomAccessDecoder", interleaved);
+                    long ranges[][] = { { 4095, 2 }, { 4096, 4096 }, { 39999, 10 }, { 40000, 1 }, { 0, 0 } };
+                    for (long range[] : ranges)
+                        checkRange(original, decoder, range[0], (int)range[1], interleaved);
+                    for (int i = 0; i < 200; i++)
+                        checkRange(original, decoder, random.nextInt(original.length),
+                                random.nextInt(10000), interleaved);
+                    if (decoder.read(original.length, new byte[1], 0, 1) != -1)
+                        throw new IllegalStateException("RandomAccessDecoder: read after the end");
+                }
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+        System.out.println("Tested random access");
+    }
+
+    // Decodes a range and compares it with the original
+    private static void checkRange(byte[] original, RandomAccessDecoder decoder,
+            long position, int length, boolean interleaved) throws IOException {
+        int end = (int)Math.min(position + length, original.length);
+        byte expected[] = Arrays.copyOfRange(original, (int)Math.min(position, end), end);
+        check(expected, decoder.read(position, length), 
+                "RandomAccessDecoder at " + position, interleaved);
+    }
+
+    // Returns a channel for reading a temporary file with the data, which
+    // is deleted when the channel is closed
+    private static FileChannel openTemp(byte[] data) throws IOException {
+        Path file = Files.createTempFile("huffman", ".txt");
+        Files.write(file, data);
+        return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    // Encodes and decodes the data with HuffmanCodec, both kinds of
+    // blocks of BlockEncoder, and HuffmanOutputStream
+    private static void testRoundTrip(byte[] original) throws IOException {
+        for (boolean interleaved : new boolean[] { false, true }) {
+            HuffmanCodec codec = new HuffmanCodec(BlockEncoder.DEFAULT_BLOCK_SIZE, interleaved);
+            ByteBuffer bytes = ByteBuffer.allocate(codec.maxCompressedLength(original.length));
+            codec.compress(original, 0, original.length, bytes);
+            bytes.flip();
+            ByteBuffer output = ByteBuffer.allocate(original.length);
+            codec.decompress(bytes, output);
+            check(original, output.array(), "HuffmanCodec", interleaved);
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            new BlockEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, null, interleaved)
+                    .encode(new ByteArrayInputStream(original), encoded);
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            new BlockDecoder().decode(new ByteArrayInputStream(encoded.toByteArray()), decoded);
+            check(original, decoded.toByteArray(), "BlockEncoder", interleaved);
+        }
 
-                // we decoded one byte
-                System.out.print((char)decoded);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (HuffmanOutputStream out = new HuffmanOutputStream(encoded)) {
+            out.write(original);
+        }
+        byte decoded[] = new byte[original.length];
+        try (InputStream in = new HuffmanInputStream(
+                new ByteArrayInputStream(encoded.toByteArray()))) {
+            new DataInputStream(in).readFully(decoded);
+            if (in.read() != -1)
+                throw new IllegalStateException("HuffmanInputStream: too many bytes");
+        }
+        check(original, decoded, "HuffmanOutputStream", false);
+    }
+
+    // Builds a Huffman tree of the data, writes it as text, reads it back 
+    // and decodes the codes of the data with both dictionaries
+    private static void testTree(byte[] original) throws IOException {
+        HuffmanDict dict = new HuffmanDict();
+        dict.add(original, 0, original.length);
+        dict.makeTree();
+        HuffmanDict copy = HuffmanDict.read(new DataInputStream(
+                new ByteArrayInputStream(dict.toBytes())));
+
+        for (HuffmanDict d : new HuffmanDict[] { dict, copy }) {
+            ByteArrayOutputStream coded = new ByteArrayOutputStream();
+            BitWriter writer = new BitWriter(coded);
+            for (byte b : original) {
+                if (d.getCodeLength(b) != dict.getCodeLength(b)
+                        || d.getCodeBits(b) != dict.getCodeBits(b))
+                    throw new IllegalStateException("Code of byte " + b + " differs after reading the tree");
+                writer.write(d.getCodeBits(b), d.getCodeLength(b));
             }
+            writer.flush();
+            byte decoded[] = new byte[original.length];
+            d.getTableDecoder().decode(coded.toByteArray(), 0, coded.size(),
+                    decoded, 0, decoded.length);
+            check(original, decoded, "HuffmanDict.read", d == copy);
         }
-        catch (EOFException e) {} // end of input stream
+    }
+
+    private static void check(byte[] original, byte[] decoded, String encoder,
+            boolean option) {
+        if (!Arrays.equals(original, decoded))
+            throw new IllegalStateException(encoder + (option ? " (option)" : "")
+                    + ": decoded data differs from the original of " 
+                    + original.length + " bytes starting with " 
+                    + (original.length > 0 ? original[0] : 0));
+    }
+
+    static byte[] encode(byte[] original) throws IOException {
+        // Show the dictionary used for encoding
+        HuffmanDict dictionary = MainEncode.buildDictionary(
+                new DataInputStream(new ByteArrayInputStream(original)));
+        System.out.println(dictionary.toString());
+
+        HuffmanCodec codec = HuffmanCodec.current();
+        ByteBuffer bytes = ByteBuffer.allocate(codec.maxCompressedLength(original.length));
+        codec.compress(original, 0, original.length, bytes);
+        byte[] data = Arrays.copyOf(bytes.array(), bytes.position());
+        System.out.println(new String(data, "US-ASCII"));
+        return data;
+    }
+
+    /**
+     * Decodes a block stream and prints the decoded bytes.
+     * 
+     * @param data the block stream
+     * @param length the number of bytes encoded in the stream
+     * @return the decoded bytes
+     */
+    static byte[] decode(byte[] data, int length) {
+        ByteBuffer output = ByteBuffer.allocate(length);
+        HuffmanCodec.current().decompress(ByteBuffer.wrap(data), output);
+        byte[] decoded = output.array();
+        for (byte b : decoded)
+            System.out.print((char)b);
+        System.out.println();
+        return decoded;
     }
 
     /**
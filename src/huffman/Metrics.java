@@ -0,0 +1,262 @@
+package huffman;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the time spent in each phase of encoding and decoding, and
+ * of the compression achieved compared to the entropy of the data.
+ *
+ * The metrics are collected only if the system property huffman.metrics
+ * is true, and are then registered as an MBean named OBJECT_NAME.
+ * Otherwise ENABLED is a false constant, so the JIT compiler removes the
+ * calls in the encoding and decoding loops and they cost nothing.  The
+ * counters are LongAdders, which threads update without contention.
+ *
+ * The encoders call start() before a phase and phase() after it:
+ *
+ * <pre>
+ * long time = Metrics.start();
+ * Histogram.count(data, 0, data.length, counts);
+ * time = Metrics.phase(Metrics.Phase.HISTOGRAM, time, data.length);
+ * </pre>
+ */
+public class Metrics implements MetricsMBean {
+    /** True if the metrics are collected */
+    public static final boolean ENABLED = Boolean.getBoolean("huffman.metrics");
+
+    /** Name of the registered MBean */
+    public static final String OBJECT_NAME = "huffman:type=Metrics";
+
+    /**
+     * The phases which are timed.
+     */
+    public enum Phase {
+        /** Counting the bytes of the input */
+        HISTOGRAM,
+        /** Building the codes from the counts */
+        TREE,
+        /** Writing the dictionaries and block headers */
+        HEADER,
+        /** Writing the codes of the input bytes */
+        ENCODE,
+        /** Decoding the codes into bytes */
+        DECODE
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final int PHASES = Phase.values().length;
+    private static final LongAdder nanos[] = new LongAdder[PHASES];
+    private static final LongAdder bytes[] = new LongAdder[PHASES];
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder codedBits = new LongAdder();
+    private static final LongAdder entropySymbols = new LongAdder();
+    private static final DoubleAdder entropyBits = new DoubleAdder();
+
+    static {
+        for (int i = 0; i < PHASES; i++) {
+            nanos[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+        }
+        if (ENABLED)
+            register();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the metrics, which are shared by all the encoders and
+     * decoders of the process.
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, if they are
+     * not registered yet.
+     */
+    public static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(INSTANCE, name);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Returns the time at the start of a phase, or 0 if the metrics are
+     * not collected.
+     */
+    static long start() {
+        if (!ENABLED)
+            return 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start to the phase, which processed the given
+     * number of bytes, and returns the time at the end of the phase.
+     *
+     * @param phase the phase
+     * @param start the time returned by start() or phase()
+     * @param count the number of bytes processed
+     * @return the current time, or 0 if the metrics are not collected
+     */
+    static long phase(Phase phase, long start, long count) {
+        if (!ENABLED)
+            return 0;
+        long now = System.nanoTime();
+        nanos[phase.ordinal()].add(now - start);
+        bytes[phase.ordinal()].add(count);
+        return now;
+    }
+
+    /**
+     * Adds an encoded block.
+     *
+     * @param rawLength the number of input bytes
+     * @param encodedLength the number of bytes of the block, with its
+     * header
+     * @param dataBits the number of bits of encoded data
+     * @param counts the counts of the input bytes, indexed by the unsigned
+     * byte value, or null if they are not known
+     */
+    static void block(long rawLength, long encodedLength, long dataBits, int counts[]) {
+        if (!ENABLED)
+            return;
+        bytesIn.add(rawLength);
+        bytesOut.add(encodedLength);
+        if (counts == null)
+            return;
+        codedBits.add(dataBits);
+        entropySymbols.add(rawLength);
+        entropyBits.add(entropy(counts, rawLength));
+    }
+
+    // Returns the smallest number of bits needed to encode bytes with the
+    // given counts, one at a time
+    private static double entropy(int counts[], long total) {
+        double bits = 0;
+        for (int count : counts) {
+            if (count != 0)
+                bits -= count * Math.log((double)count / total);
+        }
+        return bits / Math.log(2);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getBitsPerSymbol() {
+        long symbols = entropySymbols.sum();
+        return (symbols == 0) ? 0 : (double)codedBits.sum() / symbols;
+    }
+
+    @Override
+    public double getEntropyBitsPerSymbol() {
+        long symbols = entropySymbols.sum();
+        return (symbols == 0) ? 0 : entropyBits.sum() / symbols;
+    }
+
+    @Override
+    public long getHistogramNanos() {
+        return getNanos(Phase.HISTOGRAM);
+    }
+
+    @Override
+    public long getTreeNanos() {
+        return getNanos(Phase.TREE);
+    }
+
+    @Override
+    public long getHeaderNanos() {
+        return getNanos(Phase.HEADER);
+    }
+
+    @Override
+    public long getEncodeNanos() {
+        return getNanos(Phase.ENCODE);
+    }
+
+    @Override
+    public long getDecodeNanos() {
+        return getNanos(Phase.DECODE);
+    }
+
+    @Override
+    public double getHistogramThroughput() {
+        return getThroughput(Phase.HISTOGRAM);
+    }
+
+    @Override
+    public double getEncodeThroughput() {
+        return getThroughput(Phase.ENCODE);
+    }
+
+    @Override
+    public double getDecodeThroughput() {
+        return getThroughput(Phase.DECODE);
+    }
+
+    /**
+     * Returns the time spent in the phase, in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of bytes processed by the phase per second of
+     * its time, in MB/s.
+     */
+    public double getThroughput(Phase phase) {
+        long time = getNanos(phase);
+        return (time == 0) ? 0 : bytes[phase.ordinal()].sum() * 1e9 / time / (1024 * 1024);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < PHASES; i++) {
+            nanos[i].reset();
+            bytes[i].reset();
+        }
+        bytesIn.reset();
+        bytesOut.reset();
+        codedBits.reset();
+        entropySymbols.reset();
+        entropyBits.reset();
+    }
+
+    /**
+     * Returns the metrics on several lines.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("bytes in %d, out %d, %.3f bits per byte, entropy %.3f%n",
+                getBytesIn(), getBytesOut(), getBitsPerSymbol(), getEntropyBitsPerSymbol()));
+        for (Phase phase : Phase.values())
+            sb.append(String.format("%-9s %8.1f ms %9.1f MB/s%n", phase.name().toLowerCase(),
+                    getNanos(phase) / 1e6, getThroughput(phase)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package huffman;
+
+/**
+ * Management interface of Metrics, registered as Metrics.OBJECT_NAME.
+ * Times are in nanoseconds, added up over all the threads, and
+ * throughputs in MB/s of one thread.
+ */
+public interface MetricsMBean {
+    /** Returns the number of input bytes of the encoded blocks */
+    long getBytesIn();
+
+    /** Returns the number of bytes of the encoded blocks, with their headers */
+    long getBytesOut();
+
+    /** Returns the number of encoded bits per input byte, with padding */
+    double getBitsPerSymbol();
+
+    /** Returns the entropy of the bytes of the encoded blocks, in bits */
+    double getEntropyBitsPerSymbol();
+
+    long getHistogramNanos();
+    long getTreeNanos();
+    long getHeaderNanos();
+    long getEncodeNanos();
+    long getDecodeNanos();
+
+    double getHistogramThroughput();
+    double getEncodeThroughput();
+    double getDecodeThroughput();
+
+    /** Sets all the metrics to 0 */
+    void reset();
+}
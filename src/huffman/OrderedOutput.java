@@ -0,0 +1,80 @@
+package huffman;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks which produce blocks of output in a ForkJoinPool and writes
+ * the blocks to an output stream in the order the tasks were submitted.
+ * At most twice the pool parallelism tasks are pending, which limits
+ * the memory used by blocks waiting to be written.
+ */
+class OrderedOutput {
+    private final ForkJoinPool pool;
+    private final OutputStream output;
+    private final ArrayDeque<ForkJoinTask<byte[]>> tasks;
+    private final int maxTasks;
+    private final Consumer<byte[]> written;
+
+    /**
+     * @param pool the pool where tasks run, or null to run the tasks in
+     * the calling thread
+     * @param output the output stream where blocks are written
+     */
+    OrderedOutput(ForkJoinPool pool, OutputStream output) {
+        this(pool, output, null);
+    }
+
+    /**
+     * @param pool the pool where tasks run, or null to run the tasks in
+     * the calling thread
+     * @param output the output stream where blocks are written
+     * @param written called with each block after it is written, or null
+     */
+    OrderedOutput(ForkJoinPool pool, OutputStream output, Consumer<byte[]> written) {
+        this.pool = pool;
+        this.output = output;
+        this.tasks = new ArrayDeque<>();
+        this.maxTasks = (pool != null) ? 2 * pool.getParallelism() : 1;
+        this.written = written;
+    }
+
+    /**
+     * Starts a task, and writes the block of the oldest task if there
+     * are too many pending tasks.
+     * 
+     * @param task the task
+     * @throws IOException if an error occurs during writing
+     */
+    void submit(Callable<byte[]> task) throws IOException {
+        ForkJoinTask<byte[]> t = ForkJoinTask.adapt(task);
+        if (pool != null)
+            pool.execute(t);
+        else
+            t.invoke();
+        tasks.add(t);
+
+        if (tasks.size() >= maxTasks)
+            writeOldest();
+    }
+
+    /**
+     * Waits for all the tasks and writes their blocks.
+     * @throws IOException if an error occurs during writing
+     */
+    void finish() throws IOException {
+        while (!tasks.isEmpty())
+            writeOldest();
+    }
+
+    private void writeOldest() throws IOException {
+        byte[] block = tasks.remove().join();
+        output.write(block);
+        if (written != null)
+            written.accept(block);
+    }
+}
@@ -1,5 +1,8 @@
 package huffman;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
 
 /**
@@ -8,23 +11,58 @@ import java.util.NoSuchElementException;
  * We use a one-based indexing to simplify calculations of parent and 
  * child indexes.
  *
+ * The order of the elements is their natural order, or the order given
+ * by a Comparator.  The largest element is removed first, so a reversed
+ * comparator makes this a min heap.
+ *
  * @param <T> the queue element type
  */
-public class PriorityQueue<T extends Comparable<T>> {
+public class PriorityQueue<T> {
 
     private ArrayList<T> heapArray;
+    private final Comparator<? super T> comparator;
 
     /**
-     * Creates a PriorityQueue.
+     * Creates a PriorityQueue ordered by the natural order of its elements,
+     * which must implement Comparable.
      */
     public PriorityQueue() {
+        this((Comparator<? super T>)null);
+    }
+
+    /**
+     * Creates a PriorityQueue ordered by the given comparator.
+     * 
+     * @param comparator the comparator, or null for the natural order
+     */
+    public PriorityQueue(Comparator<? super T> comparator) {
         this.heapArray = new ArrayList<>();
+        this.comparator = comparator;
         
         // Start storage from index 1. This simplifies the expressions
         // used for finding parent and child indexes
         heapArray.add(null);
     }
 
+    /**
+     * Creates a PriorityQueue containing the given elements, ordered by 
+     * the given comparator.  The heap is built bottom up in linear time
+     * instead of inserting the elements one at a time.
+     * 
+     * @param data the elements
+     * @param comparator the comparator, or null for the natural order
+     */
+    public PriorityQueue(Collection<? extends T> data, Comparator<? super T> comparator) {
+        this.heapArray = new ArrayList<>(data.size() + 1);
+        this.comparator = comparator;
+        heapArray.add(null);
+        heapArray.addAll(data);
+
+        // Heapify down from the last parent to the root
+        for (int pos = size() / 2; pos >= 1; pos--)
+            heapifyDown(pos);
+    }
+
     /**
      * Insert value into the priority queue.
      * After inserting the node we heapify up to keep the heap valid.
@@ -51,26 +89,42 @@ public class PriorityQueue<T extends Comparable<T>> {
      * @throws NoSuchElementException if the priority queue is empty
      */
     public T remove() {
-        if (heapArray.isEmpty())
+        if (size() == 0)
             throw new NoSuchElementException();
         
         swap(1, heapArray.size() - 1);
         T max = heapArray.remove(heapArray.size() - 1);
+        heapifyDown(1);
+        return max;
+    }
 
-        // Heapify down from parent
-        int parent = 1;
-        int curr = getLeftChild(parent);
-        while (curr < heapArray.size()) {
-            // int j = 2*k;
-            // if left child smaller than right child, use the right child's index 
-            if (curr < (heapArray.size()-1) && less(curr, curr + 1))
-                curr++;
-            if (!less(parent, curr))
-                break;
-            swap(parent, curr);
-            parent = curr;
-            curr = getLeftChild(parent);
-        }
+    /**
+     * Returns the largest value from this priority queue without
+     * removing it.
+     *
+     * @return the largest value from this priority queue
+     * @throws NoSuchElementException if the priority queue is empty
+     */
+    public T peek() {
+        if (size() == 0)
+            throw new NoSuchElementException();
+        return heapArray.get(1);
+    }
+
+    /**
+     * Removes the largest value from this priority queue and inserts the
+     * given value.  This takes a single heapify down, instead of the 
+     * heapify down of remove() followed by the heapify up of insert().
+     *
+     * @param data the value to insert
+     * @return the largest value, which was removed
+     * @throws NoSuchElementException if the priority queue is empty
+     */
+    public T replaceTop(T data) {
+        if (size() == 0)
+            throw new NoSuchElementException();
+        T max = heapArray.set(1, data);
+        heapifyDown(1);
         return max;
     }
     
@@ -92,9 +146,29 @@ public class PriorityQueue<T extends Comparable<T>> {
         return pos * 2;
     }
 
+    // Heapify down from parent until both children are not greater
+    private void heapifyDown(int parent) {
+        int curr = getLeftChild(parent);
+        while (curr < heapArray.size()) {
+            // if left child smaller than right child, use the right child's index 
+            if (curr < (heapArray.size()-1) && less(curr, curr + 1))
+                curr++;
+            if (!less(parent, curr))
+                break;
+            swap(parent, curr);
+            parent = curr;
+            curr = getLeftChild(parent);
+        }
+    }
+
     // Return whether the key at pos1 is less than the key at pos2
+    @SuppressWarnings("unchecked")
     private boolean less(int pos1, int pos2) {
-        return heapArray.get(pos1).compareTo(heapArray.get(pos2)) < 0;
+        T data1 = heapArray.get(pos1);
+        T data2 = heapArray.get(pos2);
+        if (comparator != null)
+            return comparator.compare(data1, data2) < 0;
+        return ((Comparable<? super T>)data1).compareTo(data2) < 0;
     }
     
     // Swap nodes at pos1 and pos2
@@ -154,5 +228,39 @@ public class PriorityQueue<T extends Comparable<T>> {
             }
         }
         System.out.println();
+
+        // Build a min heap from all the values at once
+        PriorityQueue<Integer> minq = new PriorityQueue<>(
+                Arrays.asList(6, 3, 0, 1, 8, 2, 9, 3), Comparator.reverseOrder());
+        if (!minq.isValidHeap(1)) {
+            System.err.println("Invalid heap after heapify");
+            return;
+        }
+
+        System.out.print("Replace: ");
+        for (int i : data) {
+            Integer min = minq.replaceTop(i + 10);
+            System.out.print(min.toString() + " ");
+            if (!minq.isValidHeap(1) || minq.size() != data.length) {
+                System.err.println("Invalid heap after replacing " + min);
+                return;
+            }
+        }
+        System.out.println();
+
+        System.out.print("Remove: ");
+        while (minq.size() > 0) {
+            Integer i = minq.peek();
+            if (!i.equals(minq.remove())) {
+                System.err.println("peek() differs from remove()");
+                return;
+            }
+            System.out.print(i.toString() + " ");
+            if (!minq.isValidHeap(1)) {
+                System.err.println("Invalid heap after removing " + i);
+                return;
+            }
+        }
+        System.out.println();
     }
 }
@@ -0,0 +1,133 @@
+package huffman;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decodes any range of bytes of a file written by a BlockEncoder with a
+ * block index.  Only the blocks which overlap the range are read, with
+ * positional reads of the channel, and decoded.  The blocks are decoded
+ * up to the end of the range, except interleaved blocks which are always
+ * decoded whole, so the block size of the encoder bounds the time of a
+ * short read.
+ *
+ * A RandomAccessDecoder can be used by several threads at the same time.
+ */
+public class RandomAccessDecoder {
+    // Bytes read to parse the stream header
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final BlockDecoder.StreamHeader header;
+    private final BlockIndex index;
+
+    /**
+     * Reads the stream header and the block index of the file.
+     *
+     * @param channel the file containing an indexed block stream, which
+     * must remain open while the decoder is used
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the file is not a block stream
+     * with a valid block index
+     */
+    public RandomAccessDecoder(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer start = ByteBuffer.allocate((int)Math.min(MAX_HEADER_SIZE, channel.size()));
+        BlockIndex.readFully(channel, start, 0);
+        start.flip();
+        header = new BlockDecoder.StreamHeader(
+                new DataInputStream(new ByteBufferInputStream(start)));
+        if (!header.indexed)
+            throw new IllegalArgumentException("Stream has no block index");
+        index = BlockIndex.read(channel);
+        if (header.originalLength >= 0 && header.originalLength != index.rawLength())
+            throw new IllegalArgumentException("Block index does not match the stream: "
+                    + header.originalLength);
+    }
+
+    /**
+     * Returns the number of decoded bytes of the file.
+     */
+    public long size() {
+        return index.rawLength();
+    }
+
+    /**
+     * Decodes length bytes starting at the given position, or fewer if
+     * the end of the decoded data comes first.
+     *
+     * @param position the position in the decoded data
+     * @param length the number of bytes
+     * @return the decoded bytes
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the block stream is not valid
+     */
+    public byte[] read(long position, int length) throws IOException {
+        if (position < 0 || length < 0)
+            throw new IllegalArgumentException("Invalid range: " + position + ", " + length);
+        byte[] dst = new byte[(int)Math.max(0, Math.min(length, size() - position))];
+        read(position, dst, 0, dst.length);
+        return dst;
+    }
+
+    /**
+     * Decodes bytes starting at the given position into dst, until length
+     * bytes are decoded or the end of the decoded data.
+     *
+     * @param position the position in the decoded data
+     * @param dst the array where the bytes are stored
+     * @param offset the position in dst of the first byte
+     * @param length the maximum number of bytes
+     * @return the number of bytes decoded, or -1 if position is at or
+     * after the end of the decoded data
+     * @throws IOException if an error occurs during reading
+     * @throws IllegalArgumentException if the block stream is not valid
+     */
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+        if (position < 0 || offset < 0 || length < 0 || length > dst.length - offset)
+            throw new IndexOutOfBoundsException();
+        if (position >= size())
+            return -1;
+        long end = Math.min(position + length, size());
+        int block = index.blockAt(position);
+        long pos = position;
+        while (pos < end) {
+            long blockStart = index.rawOffset(block);
+            long blockEnd = index.rawOffset(block + 1);
+            int from = (int)(pos - blockStart);
+            int to = (int)(Math.min(end, blockEnd) - blockStart);
+            decodeBlock(block, dst, offset + (int)(pos - position), from, to);
+            pos = blockStart + to;
+            block++;
+        }
+        return (int)(end - position);
+    }
+
+    // Decodes the bytes from..to of the block into dst at dstPos
+    private void decodeBlock(int block, byte[] dst, int dstPos, int from, int to)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int)(index.offset(block + 1) - index.offset(block)));
+        BlockIndex.readFully(channel, data, index.offset(block));
+        data.flip();
+        DataInputStream input = new DataInputStream(new ByteBufferInputStream(data));
+        int rawLength = BlockDecoder.readLength(input);
+        if (rawLength != index.rawOffset(block + 1) - index.rawOffset(block))
+            throw new IllegalArgumentException("Block does not match the index: " + block);
+        HuffmanDict dict = header.blockDictionary(input);
+        int codedLength = BlockDecoder.readLength(input);
+        if (codedLength > data.remaining())
+            throw new EOFException();
+
+        // Codes can only be decoded from the start of the block
+        int count = header.interleaved ? rawLength : to;
+        if (from == 0 && count == to) {
+            header.decodeBlock(dict, data, dst, dstPos, count);
+        } else {
+            byte[] decoded = new byte[count];
+            header.decodeBlock(dict, data, decoded, 0, count);
+            System.arraycopy(decoded, from, dst, dstPos, to - from);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package huffman;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A dictionary trained once from sample data and used to encode many
+ * small messages.  The dictionary is stored and identified by its ID
+ * outside of the messages, so an encoded message is only the number of
+ * bytes in the message, as a Varint, followed by the codes.
+ *
+ * Every byte value gets a code, also the ones which do not occur in the
+ * samples, so any message can be encoded.  A StaticDictionary does not
+ * change after it is created and can be shared by several threads; use
+ * a DictionaryCache to load each dictionary once.
+ */
+public class StaticDictionary {
+    private final int id;
+    private final int lengths[] = new int[256];     // indexed by byte + 128
+    private final int codeBits[] = new int[256];    // indexed by byte + 128
+    private final int maxLength;
+    private final TableDecoder decoder = new TableDecoder();
+
+    // Creates the dictionary from its code lengths
+    private StaticDictionary(int id, int lengths[]) {
+        if (id < 0)
+            throw new IllegalArgumentException("Invalid dictionary ID: " + id);
+        this.id = id;
+        System.arraycopy(lengths, 0, this.lengths, 0, 256);
+        int max = 0;
+        for (int len : lengths) {
+            if (len == 0 || len > BitWriter.MAX_CODE_LENGTH)
+                throw new IllegalArgumentException("Invalid code length: " + len);
+            max = Math.max(max, len);
+        }
+        this.maxLength = max;
+        new CodeLengthBuilder().codes(this.lengths, codeBits);
+        decoder.build(this.lengths);
+    }
+
+    /**
+     * Trains a dictionary from the bytes of the given samples.
+     *
+     * @param id the dictionary ID, a non-negative number
+     * @param samples data like the messages which will be encoded
+     * @return the dictionary
+     */
+    public static StaticDictionary train(int id, Iterable<byte[]> samples) {
+        long counts[] = new long[256];
+        int sampleCounts[] = new int[256];
+        int scratch[] = new int[Histogram.SCRATCH_SIZE];
+        for (byte[] sample : samples) {
+            Arrays.fill(sampleCounts, 0);
+            Histogram.count(sample, 0, sample.length, sampleCounts, scratch);
+            for (int b = 0; b < 256; b++)
+                counts[b] += sampleCounts[b];
+        }
+        return train(id, counts);
+    }
+
+    /**
+     * Trains a dictionary from the bytes of the given sample.
+     *
+     * @param id the dictionary ID, a non-negative number
+     * @param sample data like the messages which will be encoded
+     * @param offset position of the first byte of the sample
+     * @param length number of bytes in the sample
+     * @return the dictionary
+     */
+    public static StaticDictionary train(int id, byte[] sample, int offset, int length) {
+        int counts[] = new int[256];
+        Histogram.count(sample, offset, length, counts);
+        long total[] = new long[256];
+        for (int b = 0; b < 256; b++)
+            total[b] = counts[b];
+        return train(id, total);
+    }
+
+    // Builds the dictionary from the counts indexed by unsigned byte value,
+    // normalized and with 1 added to each count so every byte gets a code
+    private static StaticDictionary train(int id, long counts[]) {
+        int normalized[] = new int[256];
+        Histogram.normalize(counts, normalized);
+        int freqs[] = new int[256];
+        for (int b = 0; b < 256; b++)
+            freqs[b ^ 0x80] = normalized[b] + 1;
+        int lengths[] = new int[256];
+        new CodeLengthBuilder().build(freqs, BitWriter.MAX_CODE_LENGTH, lengths);
+        return new StaticDictionary(id, lengths);
+    }
+
+    /**
+     * Returns the ID of this dictionary.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the dictionary in the format read by read(): its ID, as a
+     * Varint, followed by the table of code lengths written by
+     * HuffmanDict.toBytes() for canonical codes.
+     */
+    public byte[] toBytes() {
+        ByteBuffer bytes = ByteBuffer.allocate(Varint.MAX_LENGTH + HuffmanDict.MAX_LENGTH_TABLE_SIZE);
+        Varint.write(bytes, id);
+        HuffmanDict.writeLengthTable(lengths, bytes);
+        byte result[] = new byte[bytes.position()];
+        System.arraycopy(bytes.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Reads a dictionary written by toBytes() starting at the position of
+     * the buffer, and moves the position after it.
+     *
+     * @param src the buffer
+     * @return the dictionary
+     * @throws IllegalArgumentException if the buffer does not contain a
+     * valid dictionary
+     */
+    public static StaticDictionary read(ByteBuffer src) {
+        try {
+            long id = Varint.read(src);
+            if (id > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Invalid dictionary ID: " + id);
+            int lengths[] = new int[256];
+            HuffmanDict.readLengthTable(src, lengths);
+            return new StaticDictionary((int)id, lengths);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Dictionary too short");
+        }
+    }
+
+    /**
+     * Returns the largest number of bytes encode() can write for a message
+     * of the given length.
+     *
+     * @param length the number of bytes in the message
+     * @return the size of a buffer large enough for the encoded message
+     */
+    public int maxEncodedLength(int length) {
+        long max = 5 + ((long)length * maxLength + 7) / 8;
+        if (max > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Message too large: " + length);
+        return (int)max;
+    }
+
+    /**
+     * Encodes a message into dst, starting at the position of dst.  The
+     * position of dst is moved after the encoded message.
+     *
+     * @param src array containing the message
+     * @param offset position of the first byte of the message
+     * @param length number of bytes in the message
+     * @param dst the buffer where the encoded message is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small
+     */
+    public int encode(byte[] src, int offset, int length, ByteBuffer dst) {
+        if (offset < 0 || length < 0 || offset + length > src.length)
+            throw new IndexOutOfBoundsException();
+        int start = dst.position();
+        Varint.write(dst, length);
+        HuffmanCodec.encodeBlock(src, null, offset, offset + length, codeBits, lengths, dst);
+        Metrics.block(length, dst.position() - start, 0, null);
+        return dst.position() - start;
+    }
+
+    /**
+     * Encodes the message between the position and the limit of src into
+     * dst, starting at the position of dst.  The position of src is moved
+     * to its limit and the position of dst after the encoded message.
+     *
+     * @param src the message
+     * @param dst the buffer where the encoded message is stored
+     * @return the number of bytes stored in dst
+     * @throws BufferOverflowException if dst is too small
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        int length = src.remaining();
+        Varint.write(dst, length);
+        if (src.hasArray())
+            HuffmanCodec.encodeBlock(src.array(), null, src.arrayOffset() + src.position(),
+                    src.arrayOffset() + src.limit(), codeBits, lengths, dst);
+        else
+            HuffmanCodec.encodeBlock(null, src, src.position(), src.limit(), codeBits, lengths, dst);
+        src.position(src.limit());
+        Metrics.block(length, dst.position() - start, 0, null);
+        return dst.position() - start;
+    }
+
+    /**
+     * Decodes a message encoded with this dictionary, starting at the
+     * position of src, into dst.  The position of src is moved after the
+     * encoded message and the position of dst after the decoded bytes.
+     * Decoding into a buffer with an accessible array avoids a copy.
+     *
+     * @param src buffer containing the encoded message
+     * @param dst the buffer where the message is stored
+     * @return the number of bytes in the message
+     * @throws BufferOverflowException if dst is too small
+     * @throws IllegalArgumentException if src does not contain a valid
+     * encoded message
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst) {
+        long length;
+        try {
+            length = Varint.read(src);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Message too short");
+        }
+        if (length > dst.remaining())
+            throw new BufferOverflowException();
+        int count = (int)length;
+
+        boolean direct = !dst.hasArray();
+        byte out[];
+        int outPos;
+        if (!direct) {
+            out = dst.array();
+            outPos = dst.arrayOffset() + dst.position();
+        }
+        else {
+            out = new byte[count];
+            outPos = 0;
+        }
+        long time = Metrics.start();
+        if (src.hasArray()) {
+            decoder.decode(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    out, outPos, count);
+        }
+        else {
+            ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            decoder.decode(in, out, outPos, count);
+        }
+        Metrics.phase(Metrics.Phase.DECODE, time, count);
+
+        // The encoded length is the sum of the code lengths
+        long bits = 0;
+        for (int i = outPos; i < outPos + count; i++)
+            bits += lengths[out[i] + 128];
+        src.position(src.position() + (int)((bits + 7) >>> 3));
+        if (direct)
+            dst.put(out, 0, count);
+        else
+            dst.position(dst.position() + count);
+        return count;
+    }
+}
@@ -0,0 +1,732 @@
+package huffman;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Table driven Huffman decoder.
+ *
+ * Instead of walking the Huffman tree one bit at a time, the decoder looks
+ * up the next PRIMARY_BITS bits of input in a table.  Each table entry
+ * holds the decoded byte and the length of its code, and when two short
+ * codes fit in the looked up bits the entry holds both bytes.  Codes longer
+ * than the primary table index continue in secondary tables of at most
+ * SECONDARY_BITS bits.
+ *
+ * The bits are read in the order written by MainEncode: the first bit of
+ * a code is the lowest bit of a byte.
+ *
+ * A TableDecoder built from a Huffman tree does not change after it is
+ * built so it can be shared by several threads.  HuffmanCodec rebuilds
+ * its own TableDecoder for each block, reusing the tables.
+ */
+public class TableDecoder {
+    // Maximum number of bits used to index the primary and secondary tables
+    static final int PRIMARY_BITS = 11;
+    static final int SECONDARY_BITS = 8;
+
+    // Longest code we can decode, the bit buffer always holds at least
+    // this many bits unless we reached the end of the input
+    static final int MAX_CODE_LENGTH = 56;
+
+    // Number of parts of an interleaved block, and size of its jump table
+    static final int STREAMS = 4;
+    static final int JUMP_TABLE_SIZE = 4 * (STREAMS - 1);
+
+    // Size of the input and output buffers used by decode()
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Table entry layout.  A leaf entry contains:
+    //  - bits 0..7: first decoded byte
+    //  - bits 8..15: second decoded byte, if PAIR is set
+    //  - bits 16..20: length of the first code
+    //  - bits 21..25: length of both codes, if PAIR is set
+    // A link entry has LINK set, the secondary table size in bits 0..3 and
+    // the secondary table offset starting with bit 4.
+    private static final int LINK = 0x80000000;
+    private static final int PAIR = 0x04000000;
+    private static final int PAIR_SHIFT = 26;
+
+    private int table[];
+    private int tableSize;      // number of entries used in table
+    private int primaryBits;    // number of bits used to index the primary table
+    private boolean empty;      // the tree has no codes, at most one leaf
+    private int single = -1;    // the unsigned byte of a tree with a single
+                                // leaf, repeated without reading any bits
+    private boolean stored;     // the data is not encoded and is copied
+
+    // The Huffman tree used while building the tables.  Node 0 is the
+    // root, the children of node n are child[2 * n] and child[2 * n + 1],
+    // and a leaf is stored as ~b, where b is the unsigned decoded byte.
+    private final int child[] = new int[2 * 256];
+    private final int nodeDepth[] = new int[256];  // depth of the subtree of each node
+    private int nodeCount;
+
+    // Used by build(int[]) to assign the canonical codes
+    private final int lengthCounts[] = new int[MAX_CODE_LENGTH + 1];
+    private final long nextCode[] = new long[MAX_CODE_LENGTH + 1];
+
+    /**
+     * Builds the decoding tables for the Huffman tree with the given root.
+     *
+     * @param root the Huffman tree root
+     * @throws IllegalArgumentException if the tree has codes longer
+     *  than MAX_CODE_LENGTH bits, or more than 256 leaves
+     */
+    TableDecoder(HuffmanDict.Node root) {
+        int depth = root.depth();
+        if (depth > MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("Code too long: " + depth);
+
+        this.table = new int[1 << Math.min(depth, PRIMARY_BITS)];
+        if (root.isLeaf()) {
+            nodeCount = 1;
+            nodeDepth[0] = 0;
+            single = root.c & 0xFF;
+        }
+        else {
+            addNode(root);
+        }
+        buildTables();
+    }
+
+    /**
+     * Creates a TableDecoder with no codes, build() must be called
+     * before decoding.
+     */
+    TableDecoder() {
+        this.table = new int[1 << PRIMARY_BITS];
+        this.empty = true;
+    }
+
+    /**
+     * Rebuilds the decoding tables for the canonical codes with the given
+     * lengths, as assigned by HuffmanDict.makeCanonicalTree().  The tables
+     * of the previous build are reused.
+     *
+     * @param lengths code lengths indexed by byte + 128, 0 if the byte 
+     * has no code, checked by HuffmanDict.readLengthTable()
+     * @throws IllegalArgumentException if a code is longer than 
+     *  MAX_CODE_LENGTH bits
+     */
+    void build(int lengths[]) {
+        Arrays.fill(lengthCounts, 0);
+        for (int i = 0; i < 256; i++) {
+            if (lengths[i] > MAX_CODE_LENGTH)
+                throw new IllegalArgumentException("Code too long: " + lengths[i]);
+            lengthCounts[lengths[i]]++;
+        }
+        lengthCounts[0] = 0;
+        long code = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            code = (code + lengthCounts[len - 1]) << 1;
+            nextCode[len] = code;
+        }
+
+        nodeCount = 1;
+        nodeDepth[0] = 0;
+        child[0] = child[1] = 0;
+        single = -1;
+        for (int i = 0; i < 256; i++) {
+            int len = lengths[i];
+            if (len != 0)
+                insertLeaf(i ^ 0x80, nextCode[len]++, len);
+        }
+        buildTables();
+    }
+
+    /**
+     * Rebuilds the decoder for a dictionary with the single byte b, which
+     * is decoded without reading any bits.
+     *
+     * @param b the byte
+     */
+    void buildSingle(byte b) {
+        nodeCount = 1;
+        nodeDepth[0] = 0;
+        single = b & 0xFF;
+        buildTables();
+    }
+
+    /**
+     * Rebuilds the decoder for a stored block, whose data is copied
+     * without decoding.
+     */
+    void buildStored() {
+        single = -1;
+        stored = true;
+    }
+
+    /**
+     * Decodes the bits read from the input stream until the end of the
+     * stream is reached and writes the decoded bytes to the output stream.
+     * Decoding stops when the bits left in the input do not make up
+     * a complete code.  A dictionary with a single byte has a code of
+     * length 0, so nothing is decoded: the number of bytes is only known
+     * from the block headers.
+     *
+     * @param input input stream containing encoded data
+     * @param output output stream where decoded bytes are written
+     * @throws IOException if an error occurs during reading or writing
+     */
+    public void decode(InputStream input, OutputStream output) throws IOException {
+        byte[] in = new byte[BUFFER_SIZE];
+        if (stored) {
+            for (int n = input.read(in); n != -1; n = input.read(in))
+                output.write(in, 0, n);
+            return;
+        }
+        if (empty)
+            return;
+
+        byte[] out = new byte[BUFFER_SIZE];
+        int inPos = 0;
+        int inLen = 0;
+        int outPos = 0;
+        long bitBuf = 0;    // bits not decoded yet, the next bit is bit 0
+        int bitCount = 0;   // number of bits in bitBuf
+        int primaryMask = (1 << primaryBits) - 1;
+
+        while (true) {
+            // Fill the bit buffer with whole bytes
+            while (bitCount <= MAX_CODE_LENGTH) {
+                if (inPos == inLen) {
+                    inLen = input.read(in, 0, in.length);
+                    inPos = 0;
+                    if (inLen <= 0) {
+                        inLen = 0;
+                        break; // end of input stream
+                    }
+                }
+                bitBuf |= (long)(in[inPos++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+
+            // Make room for at least two bytes
+            if (outPos > out.length - 2) {
+                output.write(out, 0, outPos);
+                outPos = 0;
+            }
+
+            int entry = table[(int)bitBuf & primaryMask];
+            int len;
+            if (entry >= 0) {
+                len = (entry >>> 21) & 0x1F;
+                if ((entry & PAIR) != 0 && len <= bitCount) {
+                    out[outPos++] = (byte)entry;
+                    out[outPos++] = (byte)(entry >>> 8);
+                    bitBuf >>>= len;
+                    bitCount -= len;
+                    continue;
+                }
+                len = (entry >>> 16) & 0x1F;
+            }
+            else {
+                // Long code, continue in the secondary tables
+                entry = longCode(entry, bitBuf);
+                len = entry >>> 8;
+            }
+
+            if (len > bitCount)
+                break; // only padding bits left
+            out[outPos++] = (byte)entry;
+            bitBuf >>>= len;
+            bitCount -= len;
+        }
+        output.write(out, 0, outPos);
+    }
+
+    /**
+     * Decodes exactly count bytes from the encoded data in src and stores
+     * them in dst.
+     *
+     * @param src array containing encoded data
+     * @param srcPos position of the encoded data in src
+     * @param srcLen length of the encoded data
+     * @param dst array where decoded bytes are stored
+     * @param dstPos position in dst of the first decoded byte
+     * @param count number of bytes to decode
+     * @throws IllegalArgumentException if the encoded data ends before
+     *  count bytes are decoded
+     */
+    public void decode(byte[] src, int srcPos, int srcLen, 
+            byte[] dst, int dstPos, int count) {
+        if (stored) {
+            copyStored(src, srcPos, srcLen, dst, dstPos, count);
+            return;
+        }
+        if (empty) {
+            decodeWithoutBits(dst, dstPos, count);
+            return;
+        }
+        decode(src, srcPos, srcPos + srcLen, 0, 0, dst, dstPos, dstPos + count);
+    }
+
+    // Decodes the bytes dst[dstPos..dstEnd) from src[srcPos..srcEnd),
+    // starting with the bits already in bitBuf
+    private void decode(byte[] src, int srcPos, int srcEnd, long bitBuf, int bitCount,
+            byte[] dst, int dstPos, int dstEnd) {
+        int primaryMask = (1 << primaryBits) - 1;
+
+        while (dstPos < dstEnd) {
+            while (bitCount <= MAX_CODE_LENGTH && srcPos < srcEnd) {
+                bitBuf |= (long)(src[srcPos++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+
+            int entry = table[(int)bitBuf & primaryMask];
+            int len;
+            if (entry >= 0) {
+                len = (entry >>> 21) & 0x1F;
+                if ((entry & PAIR) != 0 && len <= bitCount && dstPos < dstEnd - 1) {
+                    dst[dstPos++] = (byte)entry;
+                    dst[dstPos++] = (byte)(entry >>> 8);
+                    bitBuf >>>= len;
+                    bitCount -= len;
+                    continue;
+                }
+                len = (entry >>> 16) & 0x1F;
+            }
+            else {
+                entry = longCode(entry, bitBuf);
+                len = entry >>> 8;
+            }
+
+            if (len > bitCount)
+                throw new IllegalArgumentException("Encoded data too short");
+            dst[dstPos++] = (byte)entry;
+            bitBuf >>>= len;
+            bitCount -= len;
+        }
+    }
+
+    /**
+     * Decodes exactly count bytes from the encoded data between the
+     * position and the limit of src and stores them in dst.  The position
+     * of src is not changed.  Buffers without an accessible array, like
+     * mapped files, are read 8 bytes at a time.
+     *
+     * @param src buffer containing encoded data
+     * @param dst array where decoded bytes are stored
+     * @param dstPos position in dst of the first decoded byte
+     * @param count number of bytes to decode
+     * @throws IllegalArgumentException if the encoded data ends before
+     *  count bytes are decoded
+     */
+    public void decode(ByteBuffer src, byte[] dst, int dstPos, int count) {
+        if (stored && !src.hasArray()) {
+            if (src.remaining() < count)
+                throw new IllegalArgumentException("Stored data too short");
+            src.duplicate().get(dst, dstPos, count);
+            return;
+        }
+        if (src.hasArray()) {
+            decode(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    dst, dstPos, count);
+            return;
+        }
+        int srcPos = src.position();
+        int srcEnd = src.limit();
+        int dstEnd = dstPos + count;
+        if (empty) {
+            decodeWithoutBits(dst, dstPos, count);
+            return;
+        }
+
+        ByteBuffer in = (src.order() == ByteOrder.LITTLE_ENDIAN) ? 
+                src : src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long bitBuf = 0;
+        int bitCount = 0;
+        int primaryMask = (1 << primaryBits) - 1;
+
+        while (dstPos < dstEnd) {
+            if (srcPos + 8 <= srcEnd) {
+                // Add whole bytes until the buffer holds at least 56 bits
+                bitBuf |= in.getLong(srcPos) << bitCount;
+                srcPos += (63 - bitCount) >>> 3;
+                bitCount |= 56;
+            }
+            else {
+                while (bitCount <= MAX_CODE_LENGTH && srcPos < srcEnd) {
+                    bitBuf |= (long)(in.get(srcPos++) & 0xFF) << bitCount;
+                    bitCount += 8;
+                }
+            }
+
+            int entry = table[(int)bitBuf & primaryMask];
+            int len;
+            if (entry >= 0) {
+                len = (entry >>> 21) & 0x1F;
+                if ((entry & PAIR) != 0 && len <= bitCount && dstPos < dstEnd - 1) {
+                    dst[dstPos++] = (byte)entry;
+                    dst[dstPos++] = (byte)(entry >>> 8);
+                    bitBuf >>>= len;
+                    bitCount -= len;
+                    continue;
+                }
+                len = (entry >>> 16) & 0x1F;
+            }
+            else {
+                entry = longCode(entry, bitBuf);
+                len = entry >>> 8;
+            }
+
+            if (len > bitCount)
+                throw new IllegalArgumentException("Encoded data too short");
+            dst[dstPos++] = (byte)entry;
+            bitBuf >>>= len;
+            bitCount -= len;
+        }
+    }
+
+    /**
+     * Decodes exactly count bytes from an interleaved block in src.  The
+     * bytes of the block were split into STREAMS parts of
+     * interleavedPart(count) bytes, the last part shorter, and each part
+     * was encoded separately, starting with a new byte.  The encoded block
+     * starts with a jump table of JUMP_TABLE_SIZE bytes holding the
+     * encoded lengths of the first three parts, as 4 byte little endian
+     * numbers, followed by the four encoded parts.
+     *
+     * The four parts are decoded together, one code from each part in
+     * turn, so the processor can decode them in parallel instead of
+     * waiting for the length of each code before decoding the next one.
+     *
+     * @param src array containing the encoded block
+     * @param srcPos position of the encoded block in src
+     * @param srcLen length of the encoded block
+     * @param dst array where decoded bytes are stored
+     * @param dstPos position in dst of the first decoded byte
+     * @param count number of bytes to decode
+     * @throws IllegalArgumentException if the encoded block is not valid
+     */
+    public void decodeInterleaved(byte[] src, int srcPos, int srcLen,
+            byte[] dst, int dstPos, int count) {
+        if (stored) {
+            // Stored data is not split into parts
+            copyStored(src, srcPos, srcLen, dst, dstPos, count);
+            return;
+        }
+        if (empty) {
+            // A single byte is stored without a jump table
+            decodeWithoutBits(dst, dstPos, count);
+            return;
+        }
+        if (srcLen < JUMP_TABLE_SIZE)
+            throw new IllegalArgumentException("Encoded data too short");
+        long size0 = readInt(src, srcPos);
+        long size1 = readInt(src, srcPos + 4);
+        long size2 = readInt(src, srcPos + 8);
+        if (size0 + size1 + size2 > srcLen - JUMP_TABLE_SIZE)
+            throw new IllegalArgumentException("Invalid jump table");
+
+        // Input and output range of each part
+        int p0 = srcPos + JUMP_TABLE_SIZE;
+        int start1 = p0 + (int)size0;
+        int start2 = start1 + (int)size1;
+        int start3 = start2 + (int)size2;
+        int srcEnd = srcPos + srcLen;
+        int p1 = start1, p2 = start2, p3 = start3;
+        int part = interleavedPart(count);
+        int end0 = dstPos + Math.min(part, count);
+        int end1 = dstPos + Math.min(2 * part, count);
+        int end2 = dstPos + Math.min(3 * part, count);
+        int end3 = dstPos + count;
+        int o0 = dstPos, o1 = end0, o2 = end1, o3 = end2;
+
+        long b0 = 0, b1 = 0, b2 = 0, b3 = 0;    // bit buffers
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;     // number of bits in each buffer
+        int primaryMask = (1 << primaryBits) - 1;
+
+        // Decode one code, or a pair of codes, from each part in turn.  Each
+        // round fills the bit buffers with at least 56 bits, reading at
+        // most 7 bytes of each part, and decodes one or two steps, of at
+        // most 2 bytes each, from each part.  Two steps fit in the bits
+        // when no code is longer than 28 bits.  The number of rounds left
+        // is computed ahead so the loop does not check the ends of the parts.
+        ByteBuffer in = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+        int steps = (nodeDepth[0] <= 28) ? 2 : 1;
+        while (true) {
+            int rounds = Math.min(Math.min(end0 - o0, end1 - o1), 
+                    Math.min(end2 - o2, end3 - o3)) / (2 * steps);
+            rounds = Math.min(rounds, Math.min(Math.min(inputRounds(p0, start1), 
+                    inputRounds(p1, start2)), Math.min(inputRounds(p2, start3),
+                    inputRounds(p3, srcEnd))));
+            if (rounds <= 0)
+                break;
+
+            for (; rounds > 0; rounds--) {
+                b0 |= in.getLong(p0) << c0;
+                p0 += (63 - c0) >>> 3;
+                c0 |= 56;
+                b1 |= in.getLong(p1) << c1;
+                p1 += (63 - c1) >>> 3;
+                c1 |= 56;
+                b2 |= in.getLong(p2) << c2;
+                p2 += (63 - c2) >>> 3;
+                c2 |= 56;
+                b3 |= in.getLong(p3) << c3;
+                p3 += (63 - c3) >>> 3;
+                c3 |= 56;
+
+                for (int step = 0; step < steps; step++) {
+                    int e0 = table[(int)b0 & primaryMask];
+                    int e1 = table[(int)b1 & primaryMask];
+                    int e2 = table[(int)b2 & primaryMask];
+                    int e3 = table[(int)b3 & primaryMask];
+                    int len;
+
+                    // The second byte is written even if the entry holds a
+                    // single code, it is overwritten by the next code
+                    if (e0 >= 0) {
+                        dst[o0] = (byte)e0;
+                        dst[o0 + 1] = (byte)(e0 >>> 8);
+                        int pair = (e0 >>> PAIR_SHIFT) & 1;
+                        o0 += 1 + pair;
+                        len = (e0 >>> (16 + 5 * pair)) & 0x1F;
+                    }
+                    else {
+                        e0 = longCode(e0, b0);
+                        dst[o0++] = (byte)e0;
+                        len = e0 >>> 8;
+                    }
+                    b0 >>>= len;
+                    c0 -= len;
+
+                    if (e1 >= 0) {
+                        dst[o1] = (byte)e1;
+                        dst[o1 + 1] = (byte)(e1 >>> 8);
+                        int pair = (e1 >>> PAIR_SHIFT) & 1;
+                        o1 += 1 + pair;
+                        len = (e1 >>> (16 + 5 * pair)) & 0x1F;
+                    }
+                    else {
+                        e1 = longCode(e1, b1);
+                        dst[o1++] = (byte)e1;
+                        len = e1 >>> 8;
+                    }
+                    b1 >>>= len;
+                    c1 -= len;
+
+                    if (e2 >= 0) {
+                        dst[o2] = (byte)e2;
+                        dst[o2 + 1] = (byte)(e2 >>> 8);
+                        int pair = (e2 >>> PAIR_SHIFT) & 1;
+                        o2 += 1 + pair;
+                        len = (e2 >>> (16 + 5 * pair)) & 0x1F;
+                    }
+                    else {
+                        e2 = longCode(e2, b2);
+                        dst[o2++] = (byte)e2;
+                        len = e2 >>> 8;
+                    }
+                    b2 >>>= len;
+                    c2 -= len;
+
+                    if (e3 >= 0) {
+                        dst[o3] = (byte)e3;
+                        dst[o3 + 1] = (byte)(e3 >>> 8);
+                        int pair = (e3 >>> PAIR_SHIFT) & 1;
+                        o3 += 1 + pair;
+                        len = (e3 >>> (16 + 5 * pair)) & 0x1F;
+                    }
+                    else {
+                        e3 = longCode(e3, b3);
+                        dst[o3++] = (byte)e3;
+                        len = e3 >>> 8;
+                    }
+                    b3 >>>= len;
+                    c3 -= len;
+                }
+            }
+        }
+
+        // Decode the rest of each part on its own
+        decode(src, p0, start1, b0, c0, dst, o0, end0);
+        decode(src, p1, start2, b1, c1, dst, o1, end1);
+        decode(src, p2, start3, b2, c2, dst, o2, end2);
+        decode(src, p3, srcEnd, b3, c3, dst, o3, end3);
+    }
+
+    /**
+     * Decodes exactly count bytes from the interleaved block between the
+     * position and the limit of src, as decodeInterleaved(byte[], ...).
+     * The position of src is not changed.
+     *
+     * @param src buffer containing the encoded block
+     * @param dst array where decoded bytes are stored
+     * @param dstPos position in dst of the first decoded byte
+     * @param count number of bytes to decode
+     * @throws IllegalArgumentException if the encoded block is not valid
+     */
+    public void decodeInterleaved(ByteBuffer src, byte[] dst, int dstPos, int count) {
+        if (stored) {
+            decode(src, dst, dstPos, count);
+            return;
+        }
+        if (src.hasArray()) {
+            decodeInterleaved(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    dst, dstPos, count);
+            return;
+        }
+        // Buffers without an array, like mapped files, are copied first
+        byte[] coded = new byte[src.remaining()];
+        src.duplicate().get(coded);
+        decodeInterleaved(coded, 0, coded.length, dst, dstPos, count);
+    }
+
+    /**
+     * Returns the number of bytes in each of the first three parts of an
+     * interleaved block of count bytes.
+     */
+    static int interleavedPart(int count) {
+        return (int)(((long)count + STREAMS - 1) / STREAMS);
+    }
+
+    // Returns the number of rounds of decodeInterleaved() which can read
+    // 8 bytes of input starting at pos, before end
+    private static int inputRounds(int pos, int end) {
+        return (end - pos < 8) ? 0 : (end - pos - 8) / 7 + 1;
+    }
+
+    // Decodes count bytes when there are no codes: a single byte is
+    // repeated, without a byte there is nothing to decode
+    private void decodeWithoutBits(byte[] dst, int dstPos, int count) {
+        if (single >= 0)
+            Arrays.fill(dst, dstPos, dstPos + count, (byte)single);
+        else if (count != 0)
+            throw new IllegalArgumentException("No code to decode");
+    }
+
+    // Copies the count bytes of a stored block
+    private static void copyStored(byte[] src, int srcPos, int srcLen, 
+            byte[] dst, int dstPos, int count) {
+        if (srcLen < count)
+            throw new IllegalArgumentException("Stored data too short");
+        System.arraycopy(src, srcPos, dst, dstPos, count);
+    }
+
+    // Reads a 4 byte little endian number
+    private static long readInt(byte[] src, int pos) {
+        return (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8 | (src[pos + 2] & 0xFF) << 16
+                | (src[pos + 3] & 0xFFL) << 24;
+    }
+
+    // Decodes a code longer than primaryBits starting from the given link
+    // entry of the primary table.  Returns the decoded byte in bits 0..7
+    // and the code length starting with bit 8.
+    private int longCode(int entry, long bitBuf) {
+        int used = primaryBits;
+        while (true) {
+            int bits = entry & 0xF;
+            int offset = (entry & ~LINK) >>> 4;
+            entry = table[offset + ((int)(bitBuf >>> used) & ((1 << bits) - 1))];
+            if (entry >= 0)
+                return (entry & 0xFF) | ((used + ((entry >>> 16) & 0x1F)) << 8);
+            used += bits;
+        }
+    }
+
+    // Builds the tables from the tree in child[]
+    private void buildTables() {
+        int depth = nodeDepth[0];
+        this.stored = false;
+        this.empty = (depth == 0);
+        this.primaryBits = Math.min(depth, PRIMARY_BITS);
+        this.tableSize = 0;
+        if (!empty)
+            build(0, primaryBits);
+    }
+
+    // Adds the subtree of the node to child[] and returns its index, or 
+    // ~b if the node is a leaf with the byte b
+    private int addNode(HuffmanDict.Node n) {
+        if (n.isLeaf())
+            return ~(n.c & 0xFF);
+        // A tree of 256 leaves has 255 other nodes, a tree read from
+        // a corrupt dictionary can repeat leaves and have more
+        if (nodeCount == 255)
+            throw new IllegalArgumentException("Too many nodes in the tree");
+        int index = nodeCount++;
+        child[2 * index] = addNode(n.left);
+        child[2 * index + 1] = addNode(n.right);
+        nodeDepth[index] = n.depth();
+        return index;
+    }
+
+    // Inserts a leaf with the byte b at the position given by the code,
+    // the first bit of the code is the highest bit
+    private void insertLeaf(int b, long code, int len) {
+        int n = 0;
+        for (int bit = len - 1; bit > 0; bit--) {
+            nodeDepth[n] = Math.max(nodeDepth[n], bit + 1);
+            int c = 2 * n + (int)((code >>> bit) & 1);
+            if (child[c] == 0) {
+                int next = nodeCount++;
+                child[2 * next] = child[2 * next + 1] = 0;
+                nodeDepth[next] = 0;
+                child[c] = next;
+            }
+            n = child[c];
+        }
+        nodeDepth[n] = Math.max(nodeDepth[n], 1);
+        child[2 * n + (int)(code & 1)] = ~b;
+    }
+
+    // Fills the table of the given size, starting at tableSize, with
+    // the codes from the subtree of node. The root is used to find
+    // a second code following a short one. Returns the table offset.
+    private int build(int node, int bits) {
+        int offset = tableSize;
+        ensureCapacity(offset + (1 << bits));
+        tableSize += 1 << bits;
+
+        for (int i = 0; i < (1 << bits); i++) {
+            int n = walk(node, i, bits);
+            int len = depthWalked;
+            if (n < 0) {
+                int entry = ~n | (len << 16);
+                if (node == 0 && len < bits) {
+                    // try to decode a second code from the remaining bits
+                    int n2 = walk(0, i >>> len, bits - len);
+                    if (n2 < 0 && depthWalked > 0) {
+                        entry |= PAIR | (~n2 << 8) | ((len + depthWalked) << 21);
+                    }
+                }
+                table[offset + i] = entry;
+            }
+            else {
+                int subBits = Math.min(nodeDepth[n], SECONDARY_BITS);
+                int subOffset = build(n, subBits);
+                table[offset + i] = LINK | (subOffset << 4) | subBits;
+            }
+        }
+        return offset;
+    }
+
+    // Number of bits used by the last walk() call
+    private int depthWalked;
+
+    // Walks down from node following at most the given number of bits
+    // of code, lowest bit first, and stops at the first leaf.
+    private int walk(int node, int code, int bits) {
+        int d = 0;
+        while (node >= 0 && d < bits) {
+            node = child[2 * node + ((code >>> d) & 1)];
+            d++;
+        }
+        depthWalked = d;
+        return node;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > table.length) {
+            int newTable[] = new int[Math.max(size, table.length * 2)];
+            System.arraycopy(table, 0, newTable, 0, tableSize);
+            table = newTable;
+        }
+    }
+}
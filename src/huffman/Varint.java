@@ -0,0 +1,92 @@
+package huffman;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes non-negative numbers as variable length integers:
+ * 7 bits in each byte, lowest bits first, with the high bit set in
+ * every byte except the last one.
+ */
+class Varint {
+    // Longest encoding of a non-negative long value, 63 bits in 9 bytes,
+    // so a value read in at most 9 bytes cannot be negative
+    static final int MAX_LENGTH = 9;
+
+    /**
+     * Writes the value to the output stream.
+     *
+     * @param output the output stream
+     * @param value a non-negative value
+     * @throws IOException if an error occurs during writing
+     */
+    static void write(OutputStream output, long value) throws IOException {
+        if (value < 0)
+            throw new IllegalArgumentException(String.valueOf(value));
+        while (value >= 0x80) {
+            output.write((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int)value);
+    }
+
+    /**
+     * Reads a value from the input.
+     *
+     * @param input the input
+     * @return the value read
+     * @throws IOException if an error occurs during reading, EOFException
+     * if the input ends before the value
+     * @throws IllegalArgumentException if the value is longer than 
+     * MAX_LENGTH bytes
+     */
+    static long read(DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_LENGTH; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Variable length integer too long");
+    }
+
+    /**
+     * Writes the value into the buffer.
+     *
+     * @param output the buffer
+     * @param value a non-negative value
+     * @throws java.nio.BufferOverflowException if the buffer is full
+     */
+    static void write(ByteBuffer output, long value) {
+        if (value < 0)
+            throw new IllegalArgumentException(String.valueOf(value));
+        while (value >= 0x80) {
+            output.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte)value);
+    }
+
+    /**
+     * Reads a value from the buffer.
+     *
+     * @param input the buffer
+     * @return the value read
+     * @throws java.nio.BufferUnderflowException if the buffer ends 
+     * before the value
+     * @throws IllegalArgumentException if the value is longer than 
+     * MAX_LENGTH bytes
+     */
+    static long read(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_LENGTH; shift += 7) {
+            int b = input.get() & 0xFF;
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Variable length integer too long");
+    }
+}
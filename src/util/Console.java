@@ -11,24 +11,40 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Helper methods to get input and write output.
  */
 public class Console {
+    // Reader of System.in shared by all prompts, so lines read ahead by
+    // one prompt are not lost
+    private static BufferedReader stdin;
+
+    private static synchronized BufferedReader stdin() {
+        if (stdin == null)
+            stdin = new BufferedReader(new InputStreamReader(System.in));
+        return stdin;
+    }
+
     /**
      * Prompts the user then returns his input. If the user types "cancel"
-     * in any combination of lower case and upper case letters then it 
-     * throws a Console.CancelException.
+     * in any combination of lower case and upper case letters, or the
+     * input ends, then it throws a Console.CancelException.
      * 
      * @param prompt string to prompt the user on System out 
      * @return the line that the user types
      * @throws IOException, CancelException
      */
     public static String getLineFromUser(String prompt) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         System.out.println(prompt);
-        String line = br.readLine();
+        String line = stdin().readLine();
+        if (line == null) {
+            throw new CancelException(); // end of input
+        }
         line = line.trim();
         if (line.equalsIgnoreCase("cancel")) {
             throw new CancelException(); // user canceled program
@@ -77,6 +93,26 @@ public class Console {
         }
     }
 
+    /**
+     * Prompts user for a file name and returns a FileChannel for reading
+     * the file.  Repeats the prompts if the file does not exist or it 
+     * cannot open the file.
+     * 
+     * @return FileChannel used for reading the file
+     * @throws IOException
+     */
+    public static FileChannel getInputChannel() throws IOException {
+        while (true) {
+            // Prompt user for input file name
+            String fileName = getLineFromUser("Enter the name of the input file:");
+            try {
+                return FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            } catch (IOException | InvalidPathException e) {
+                System.err.println("File " + fileName + " does not exist or cannot be opened.");
+            }
+        }
+    }
+
     /**
      * Prompts user for a file name and returns a writer to the file.
      * 